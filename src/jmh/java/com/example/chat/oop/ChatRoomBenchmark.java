@@ -0,0 +1,92 @@
+package com.example.chat.oop;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One message published to a room, until every session has handed it to its client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatRoomBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  @Param({"10", "1000", "10000"})
+  public int sessions;
+
+  private ActorSystem<SpawnProtocol.Command> system;
+  private ActorRef<ChatRoom.Command> room;
+  private final AtomicReference<CompletableFuture<Void>> delivered = new AtomicReference<>();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    system = ActorSystem.create(SpawnProtocol.create(), "chat-room-benchmark",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    room = spawn(ChatRoom.create());
+    // all sessions talk to the same client, which counts the deliveries of every published message
+    ActorRef<Session.Event> client = spawn(countDeliveries(sessions, delivered));
+    for (int i = 0; i < sessions; i++) {
+      room.tell(new ChatRoom.GetSession("session-" + i, client));
+    }
+    // the room handles its messages in order, so every session exists once a publish is delivered
+    publish();
+  }
+
+  private <T> ActorRef<T> spawn(Behavior<T> behavior) throws Exception {
+    return AskPattern.<SpawnProtocol.Command, ActorRef<T>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(behavior, "", Props.empty(), replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  private static Behavior<Session.Event> countDeliveries(
+      int sessions, AtomicReference<CompletableFuture<Void>> delivered) {
+    return Behaviors.setup(context -> {
+      int[] received = new int[1];
+      return Behaviors.receive(Session.Event.class)
+          .onMessage(Session.MessagePosted.class, posted -> {
+            if (++received[0] == sessions) {
+              received[0] = 0;
+              delivered.get().complete(null);
+            }
+            return Behaviors.same();
+          })
+          .onMessage(Session.Event.class, event -> Behaviors.same())
+          .build();
+    });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().get();
+  }
+
+  @Benchmark
+  public void publish() throws Exception {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    delivered.set(done);
+    room.tell(new ChatRoom.PublishSessionMessage("benchmark", "hello"));
+    done.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,76 @@
+package com.example.http;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import com.example.http.UserRegistry.*;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating, getting and deleting a user in a registry that already holds a number of other users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserRegistryBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  @Param({"0", "10000"})
+  public int users;
+
+  private ActorSystem<SpawnProtocol.Command> system;
+  private ActorRef<Command> registry;
+  private long next;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    system = ActorSystem.create(SpawnProtocol.create(), "user-registry-benchmark",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    registry = AskPattern.<SpawnProtocol.Command, ActorRef<Command>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(UserRegistry.create(), "UserRegistry", Props.empty(), replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+    for (int i = 0; i < users; i++) {
+      create("existing-" + i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().get();
+  }
+
+  private ActionPerformed create(String name) throws Exception {
+    return AskPattern.<Command, ActionPerformed>ask(
+            registry, replyTo -> new CreateUser(new User(name, 42, "jp"), replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  @Benchmark
+  public ActionPerformed createGetDelete() throws Exception {
+    String name = "user-" + ++next;
+    create(name);
+    AskPattern.<Command, GetUserResponse>ask(registry, replyTo -> new GetUser(name, replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+    return AskPattern.<Command, ActionPerformed>ask(
+            registry, replyTo -> new DeleteUser(name, replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+}
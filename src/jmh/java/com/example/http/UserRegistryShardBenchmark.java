@@ -0,0 +1,76 @@
+package com.example.http;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import com.example.http.UserRegistry.*;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creating and deleting users from several threads at once, with the users spread over one registry or
+ * several by {@link UserRegistry#shardOf}, on the registry dispatcher the app uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class UserRegistryShardBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  @Param({"1", "4", "8"})
+  public int shards;
+
+  private ActorSystem<SpawnProtocol.Command> system;
+  private final List<ActorRef<Command>> registries = new ArrayList<>();
+  private final AtomicLong next = new AtomicLong();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    system = ActorSystem.create(SpawnProtocol.create(), "user-registry-shard-benchmark",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    for (int shard = 0; shard < shards; shard++) {
+      String name = "UserRegistry-" + shard;
+      registries.add(AskPattern.<SpawnProtocol.Command, ActorRef<Command>>ask(
+              system,
+              replyTo -> new SpawnProtocol.Spawn<>(UserRegistry.create(), name,
+                  DispatcherSelector.fromConfig("my-app.user-registry-dispatcher"), replyTo),
+              TIMEOUT,
+              system.scheduler())
+          .toCompletableFuture()
+          .get());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().get();
+  }
+
+  @Benchmark
+  public ActionPerformed createDelete() throws Exception {
+    String name = "user-" + next.incrementAndGet();
+    ActorRef<Command> registry = registries.get(UserRegistry.shardOf(name, shards));
+    AskPattern.<Command, ActionPerformed>ask(
+            registry, replyTo -> new CreateUser(new User(name, 42, "jp"), replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+    return AskPattern.<Command, ActionPerformed>ask(
+            registry, replyTo -> new DeleteUser(name, replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+}
@@ -0,0 +1,110 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Measures the recording rate of sharded devices for a growing number of cluster nodes on localhost.
+ * Each node records into a share of the devices through its own shard region, so the rate should grow
+ * with the nodes as long as the machine has cores to spare for them.
+ */
+public class ClusterRecordBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+  public static void main(String[] args) throws Exception {
+    int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+    int readingsPerDevice = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+
+    for (int nodeCount = 1; nodeCount <= maxNodes; nodeCount++) {
+      List<ActorSystem<Void>> nodes = startCluster(nodeCount);
+      try {
+        // the first round spawns the entities and is not measured
+        record(nodes, devices, 1);
+        long nanos = record(nodes, devices, readingsPerDevice);
+        long readings = (long) devices * readingsPerDevice;
+        System.out.printf("%d nodes: %,d readings/s%n", nodeCount, readings * 1_000_000_000L / Math.max(nanos, 1L));
+      } finally {
+        nodes.forEach(ActorSystem::terminate);
+        for (ActorSystem<Void> node : nodes) {
+          node.getWhenTerminated().toCompletableFuture().get();
+        }
+      }
+    }
+  }
+
+  private static List<ActorSystem<Void>> startCluster(int nodeCount) throws Exception {
+    Config config = ConfigFactory.parseString(
+            "akka.remote.artery.canonical.port = 0\nakka.cluster.seed-nodes = []\nakka.loglevel = WARNING")
+        .withFallback(ConfigFactory.load("iot-cluster"));
+    List<ActorSystem<Void>> nodes = new ArrayList<>();
+    for (int i = 0; i < nodeCount; i++) {
+      ActorSystem<Void> node = ActorSystem.create(Behaviors.empty(), "iot-cluster", config);
+      ClusterDeviceManager.initSharding(node);
+      nodes.add(node);
+    }
+    Cluster first = Cluster.get(nodes.get(0));
+    nodes.forEach(node -> Cluster.get(node).manager().tell(Join.create(first.selfMember().address())));
+
+    long deadline = System.nanoTime() + TIMEOUT.toNanos();
+    while (!allUp(nodes)) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Cluster of " + nodeCount + " nodes did not form in time");
+      }
+      Thread.sleep(100);
+    }
+    return nodes;
+  }
+
+  private static boolean allUp(List<ActorSystem<Void>> nodes) {
+    for (ActorSystem<Void> node : nodes) {
+      long up = StreamSupport.stream(Cluster.get(node).state().getMembers().spliterator(), false)
+          .filter(member -> member.status().equals(MemberStatus.up()))
+          .count();
+      if (up != nodes.size()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // device i is recorded through node i % nodes, every node sends from its own thread
+  private static long record(List<ActorSystem<Void>> nodes, int devices, int readingsPerDevice) {
+    long start = System.nanoTime();
+    IntStream.range(0, nodes.size()).parallel().forEach(n -> {
+      ActorSystem<Void> node = nodes.get(n);
+      ClusterSharding sharding = ClusterSharding.get(node);
+      List<EntityRef<Device.Command>> mine = new ArrayList<>();
+      for (int d = n; d < devices; d += nodes.size()) {
+        mine.add(sharding.entityRefFor(
+            ClusterDeviceManager.DEVICE_KEY, ClusterDeviceManager.entityId("benchmark", "device-" + d)));
+      }
+      for (int r = 0; r < readingsPerDevice; r++) {
+        for (EntityRef<Device.Command> device : mine) {
+          device.tell(new Device.RecordTemperatureNoReply(r, r));
+        }
+      }
+      CompletableFuture<?>[] watermarks = mine.stream()
+          .map(device -> device.<Device.TemperatureRecorded>ask(Device.RequestRecordedWatermark::new, TIMEOUT)
+              .toCompletableFuture())
+          .toArray(CompletableFuture[]::new);
+      CompletableFuture.allOf(watermarks).join();
+    });
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,67 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through a single device: recording with an acknowledgement and reading the last value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  private ActorSystem<SpawnProtocol.Command> system;
+  private ActorRef<Device.Command> device;
+  private long requestId;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    system = ActorSystem.create(SpawnProtocol.create(), "device-benchmark",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    device = AskPattern.<SpawnProtocol.Command, ActorRef<Device.Command>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(Device.create("benchmark", "device"), "device", Props.empty(), replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().get();
+  }
+
+  @Benchmark
+  public Device.TemperatureRecorded record() throws Exception {
+    long id = ++requestId;
+    return AskPattern.<Device.Command, Device.TemperatureRecorded>ask(
+            device, replyTo -> new Device.RecordTemperature(id, 21.5, replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  @Benchmark
+  public Device.RespondTemperature read() throws Exception {
+    long id = ++requestId;
+    return AskPattern.<Device.Command, Device.RespondTemperature>ask(
+            device, replyTo -> new Device.ReadTemperature(id, replyTo), TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+}
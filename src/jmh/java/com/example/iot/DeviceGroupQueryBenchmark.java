@@ -0,0 +1,89 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@link DeviceGroupQuery} over a group of devices, from spawning the query until the requester has
+ * the answer of every device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceGroupQueryBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  @Param({"10", "1000", "100000"})
+  public int devices;
+
+  private ActorSystem<SpawnProtocol.Command> system;
+  private String[] deviceIds;
+  private ActorRef<Device.Command>[] deviceActors;
+  private long requestId;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    system = ActorSystem.create(SpawnProtocol.create(), "query-benchmark",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    // sorted ids with the device of every id at the same index, as a group keeps them
+    deviceIds = new String[devices];
+    for (int i = 0; i < devices; i++) {
+      deviceIds[i] = String.format("device-%06d", i);
+    }
+    CompletableFuture<ActorRef<Device.Command>[]> spawned = new CompletableFuture<>();
+    system.tell(new SpawnProtocol.Spawn<>(spawnDevices(deviceIds, spawned), "group", Props.empty(), system.ignoreRef()));
+    deviceActors = spawned.get();
+  }
+
+  // a stand-in for the group, the parent of all devices
+  private static Behavior<Void> spawnDevices(String[] deviceIds, CompletableFuture<ActorRef<Device.Command>[]> spawned) {
+    return Behaviors.setup(context -> {
+      @SuppressWarnings("unchecked")
+      ActorRef<Device.Command>[] devices = new ActorRef[deviceIds.length];
+      for (int i = 0; i < deviceIds.length; i++) {
+        devices[i] = context.spawn(Device.create("benchmark", deviceIds[i]), deviceIds[i]);
+        devices[i].tell(new Device.RecordTemperatureNoReply(0L, i));
+      }
+      spawned.complete(devices);
+      return Behaviors.empty();
+    });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    system.terminate();
+    system.getWhenTerminated().toCompletableFuture().get();
+  }
+
+  @Benchmark
+  public DeviceManager.RespondAllTemperatures query() throws Exception {
+    long id = ++requestId;
+    return AskPattern.<SpawnProtocol.Command, DeviceManager.RespondAllTemperatures>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(
+                DeviceGroupQuery.create(deviceIds, deviceActors, Map.of(), id, replyTo, TIMEOUT),
+                "",
+                Props.empty(),
+                system.ignoreRef()),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+}
@@ -0,0 +1,129 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shows how the throughput setting of the device dispatcher trades recording latency for rate.
+ * <p>
+ * Bursts of readings are sent to many devices at once, so the devices compete for the dispatcher threads.
+ * With a high throughput a device drains more of its mailbox before the thread moves on, which saves
+ * scheduling work but keeps the other devices waiting, and that shows up in the tail latency.
+ */
+public class DispatcherThroughputBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+  private static final int[] THROUGHPUTS = {1, 5, 20, 100, 1000};
+
+  public static void main(String[] args) throws Exception {
+    int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+    int burst = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    for (int throughput : THROUGHPUTS) {
+      ActorSystem<SpawnProtocol.Command> system = ActorSystem.create(
+          SpawnProtocol.create(),
+          "dispatcher-benchmark",
+          ConfigFactory.parseString(
+                  "iot.dispatchers.device.throughput = " + throughput + "\nakka.loglevel = WARNING")
+              .withFallback(ConfigFactory.load()));
+      try {
+        List<ActorRef<Device.Command>> deviceActors = new ArrayList<>(devices);
+        for (int d = 0; d < devices; d++) {
+          deviceActors.add(spawn(system, Device.create("benchmark", "device-" + d),
+              DispatcherSelector.fromConfig("iot.dispatchers.device")));
+        }
+        // the first round warms up and is not reported
+        record(system, deviceActors, burst);
+        long[] latencies = new long[0];
+        long nanos = 0;
+        for (int round = 0; round < rounds; round++) {
+          long start = System.nanoTime();
+          long[] roundLatencies = record(system, deviceActors, burst);
+          nanos += System.nanoTime() - start;
+          int offset = latencies.length;
+          latencies = Arrays.copyOf(latencies, offset + roundLatencies.length);
+          System.arraycopy(roundLatencies, 0, latencies, offset, roundLatencies.length);
+        }
+        Arrays.sort(latencies);
+        System.out.printf("throughput %4d: %,d readings/s, latency p50 %,d us, p99 %,d us, max %,d us%n",
+            throughput,
+            latencies.length * 1_000_000_000L / Math.max(nanos, 1L),
+            percentile(latencies, 0.50) / 1_000,
+            percentile(latencies, 0.99) / 1_000,
+            latencies[latencies.length - 1] / 1_000);
+      } finally {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().get();
+      }
+    }
+  }
+
+  private static <T> ActorRef<T> spawn(ActorSystem<SpawnProtocol.Command> system, Behavior<T> behavior, Props props)
+      throws Exception {
+    return AskPattern.<SpawnProtocol.Command, ActorRef<T>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(behavior, "", props, replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  // sends burst readings to every device, interleaved, and returns the latency of each one
+  private static long[] record(ActorSystem<SpawnProtocol.Command> system, List<ActorRef<Device.Command>> devices,
+                               int burst) throws Exception {
+    int readings = devices.size() * burst;
+    long[] sentAt = new long[readings];
+    long[] latencies = new long[readings];
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    ActorRef<Device.TemperatureRecorded> acks =
+        spawn(system, collectAcks(sentAt, latencies, done), Props.empty());
+
+    int requestId = 0;
+    for (int b = 0; b < burst; b++) {
+      for (ActorRef<Device.Command> device : devices) {
+        sentAt[requestId] = System.nanoTime();
+        device.tell(new Device.RecordTemperature(requestId, b, acks));
+        requestId++;
+      }
+    }
+    done.get();
+    return latencies;
+  }
+
+  private static Behavior<Device.TemperatureRecorded> collectAcks(
+      long[] sentAt, long[] latencies, CompletableFuture<Void> done) {
+    return Behaviors.setup(context -> {
+      int[] received = new int[1];
+      return Behaviors.receive(Device.TemperatureRecorded.class)
+          .onMessage(Device.TemperatureRecorded.class, recorded -> {
+            int index = (int) recorded.requestId();
+            latencies[index] = System.nanoTime() - sentAt[index];
+            if (++received[0] == latencies.length) {
+              done.complete(null);
+              return Behaviors.stopped();
+            }
+            return Behaviors.same();
+          })
+          .build();
+    });
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+  }
+}
@@ -0,0 +1,93 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares recording throughput of the acknowledged and the fire-and-forget path of a single device.
+ */
+public class RecordThroughputBenchmark {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+  public static void main(String[] args) throws Exception {
+    int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    ActorSystem<SpawnProtocol.Command> system = ActorSystem.create(SpawnProtocol.create(), "record-benchmark");
+    try {
+      for (int round = 1; round <= rounds; round++) {
+        ActorRef<Device.Command> device = spawn(system, Device.create("benchmark", "device-" + round));
+        long acked = acked(system, device, readings);
+        long unacked = unacked(system, device, readings);
+        System.out.printf("round %d: acked %,d readings/s, unacked %,d readings/s%n",
+            round, perSecond(readings, acked), perSecond(readings, unacked));
+      }
+    } finally {
+      system.terminate();
+    }
+  }
+
+  private static <T> ActorRef<T> spawn(ActorSystem<SpawnProtocol.Command> system, Behavior<T> behavior)
+      throws Exception {
+    return AskPattern.<SpawnProtocol.Command, ActorRef<T>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(behavior, "", Props.empty(), replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  private static long acked(ActorSystem<SpawnProtocol.Command> system, ActorRef<Device.Command> device,
+                            int readings) throws Exception {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    ActorRef<Device.TemperatureRecorded> counter = spawn(system, countAcks(readings, done));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < readings; i++) {
+      device.tell(new Device.RecordTemperature(i, i, counter));
+    }
+    done.get();
+    return System.nanoTime() - start;
+  }
+
+  private static long unacked(ActorSystem<SpawnProtocol.Command> system, ActorRef<Device.Command> device,
+                              int readings) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < readings; i++) {
+      device.tell(new Device.RecordTemperatureNoReply(i, i));
+    }
+    AskPattern.ask(device, Device.RequestRecordedWatermark::new, TIMEOUT, system.scheduler())
+        .toCompletableFuture()
+        .get();
+    return System.nanoTime() - start;
+  }
+
+  private static Behavior<Device.TemperatureRecorded> countAcks(int expected, CompletableFuture<Void> done) {
+    return Behaviors.setup(context -> {
+      int[] received = new int[1];
+      return Behaviors.receive(Device.TemperatureRecorded.class)
+          .onMessage(Device.TemperatureRecorded.class, recorded -> {
+            if (++received[0] == expected) {
+              done.complete(null);
+              return Behaviors.stopped();
+            }
+            return Behaviors.same();
+          })
+          .build();
+    });
+  }
+
+  private static long perSecond(int readings, long nanos) {
+    return readings * 1_000_000_000L / Math.max(nanos, 1L);
+  }
+}
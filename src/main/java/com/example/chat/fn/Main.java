@@ -5,6 +5,7 @@ import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.Terminated;
 import akka.actor.typed.javadsl.Behaviors;
+import com.example.metrics.ActorMetrics;
 
 import java.io.IOException;
 
@@ -13,7 +14,8 @@ public class Main {
     //noinspection DuplicatedCode
     return Behaviors.setup(
         context -> {
-          ActorRef<ChatRoom.RoomCommand> chatRoom = context.spawn(ChatRoom.create(), "chatRoom");
+          ActorRef<ChatRoom.RoomCommand> chatRoom = context.spawn(
+              ActorMetrics.instrument("chat-room", ChatRoom.create()), "chatRoom", ActorMetrics.mailbox("chat-room"));
           ActorRef<ChatRoom.SessionEvent> gabbler = context.spawn(Gabbler.create(), "gabbler");
           ActorRef<ChatRoom.SessionEvent> gabbler2 = context.spawn(Gabbler.create(), "gabbler2");
           context.watch(gabbler);
@@ -6,6 +6,8 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.example.trace.EventTrace;
+import com.example.trace.TraceEvent;
 
 public class Greeter extends AbstractBehavior<Greeter.Greet> {
 
@@ -28,6 +30,7 @@ public class Greeter extends AbstractBehavior<Greeter.Greet> {
 
   private Behavior<Greet> onGreet(Greet command) {
     getContext().getLog().info("Hello {}!", command.whom());
+    EventTrace.record(TraceEvent.GREETED, command.whom().hashCode());
     //#greeter-send-message
     command.replyTo().tell(new Greeted(command.whom(), getContext().getSelf()));
     //#greeter-send-message
@@ -5,6 +5,8 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.example.trace.EventTrace;
+import com.example.trace.TraceEvent;
 
 public class GreeterBot extends AbstractBehavior<Greeter.Greeted> {
 
@@ -28,6 +30,7 @@ public class GreeterBot extends AbstractBehavior<Greeter.Greeted> {
   private Behavior<Greeter.Greeted> onGreeted(Greeter.Greeted message) {
     greetingCounter++;
     getContext().getLog().info("Greeting {} for {}", greetingCounter, message.whom());
+    EventTrace.record(TraceEvent.GREETING_RECEIVED, greetingCounter, message.whom().hashCode());
     if (greetingCounter == max) {
       return Behaviors.stopped();
     } else {
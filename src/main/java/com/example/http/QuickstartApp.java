@@ -8,9 +8,18 @@ import akka.actor.typed.javadsl.Behaviors;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
 import akka.http.javadsl.server.Route;
+import com.example.metrics.ActorMetrics;
+import com.example.metrics.MetricsRoutes;
+import com.example.trace.TraceRoutes;
+import com.typesafe.config.Config;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static akka.http.javadsl.server.Directives.concat;
 
 public class QuickstartApp {
 
@@ -33,11 +42,34 @@ public class QuickstartApp {
 
   public static void main(String[] args) throws Exception {
     Behavior<NotUsed> rootBehavior = Behaviors.setup(context -> {
-      ActorRef<UserRegistry.Command> userRegistryActor =
-          context.spawn(UserRegistry.create(), "UserRegistry");
+      Config config = context.getSystem().settings().config();
+      int shards = config.getInt("my-app.user-registry-shards");
+      String readMode = config.getString("my-app.routes.read-mode");
+      List<AtomicReference<UserSnapshot>> published;
+      switch (readMode) {
+        case "ask" -> published = null;
+        case "snapshot" -> published = new ArrayList<>(shards);
+        default -> throw new IllegalArgumentException("Unknown my-app.routes.read-mode: " + readMode);
+      }
+      List<ActorRef<UserRegistry.Command>> userRegistryActors = new ArrayList<>(shards);
+      for (int shard = 0; shard < shards; shard++) {
+        Behavior<UserRegistry.Command> userRegistry;
+        if (published != null) {
+          AtomicReference<UserSnapshot> snapshot = new AtomicReference<>(UserSnapshot.EMPTY);
+          published.add(snapshot);
+          userRegistry = UserRegistry.create(snapshot);
+        } else {
+          userRegistry = UserRegistry.create();
+        }
+        userRegistryActors.add(context.spawn(ActorMetrics.instrument("user-registry", userRegistry),
+            shards == 1 ? "UserRegistry" : "UserRegistry-" + shard,
+            ActorMetrics.mailbox("user-registry").withDispatcherFromConfig("my-app.user-registry-dispatcher")));
+      }
 
-      UserRoutes userRoutes = new UserRoutes(context.getSystem(), userRegistryActor);
-      startHttpServer(userRoutes.userRoutes(), context.getSystem());
+      UserRoutes userRoutes = new UserRoutes(context.getSystem(), userRegistryActors, published);
+      startHttpServer(
+          concat(userRoutes.userRoutes(), new MetricsRoutes().metricsRoutes(), new TraceRoutes().traceRoutes()),
+          context.getSystem());
 
       return Behaviors.empty();
     });
@@ -6,16 +6,26 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UserRegistry extends AbstractBehavior<UserRegistry.Command> {
 
   interface Command {}
 
-  public record GetUsers(ActorRef<Users> replyTo) implements Command {}
+  /**
+   * Asks for at most limit users in the order of their names, starting after the given name or at the
+   * first user if after is null.
+   */
+  public record GetUsers(int limit, String after, ActorRef<Users> replyTo) implements Command {}
 
   public record CreateUser(User user, ActorRef<ActionPerformed> replyTo) implements Command {}
 
@@ -29,16 +39,50 @@ public class UserRegistry extends AbstractBehavior<UserRegistry.Command> {
 
   public record User(String name, int age, String countryOfResidence) {}
 
-  public record Users(List<User> users) {}
+  /**
+   * One page of users, next is the cursor for the following page and null on the last one.
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public record Users(List<User> users, String next) {}
 
-  private final List<User> users = new ArrayList<>();
+  // the primary index for lookups, and the same users ordered by name for paging, null when the users
+  // are published, which are then read from the snapshot instead of keeping them twice
+  private final Map<String, User> usersByName;
+  private final NavigableMap<String, User> orderedUsers;
 
-  private UserRegistry(ActorContext<Command> context) {
+  // where the users are published for reading without asking, null if they are not
+  private final AtomicReference<UserSnapshot> published;
+  private UserSnapshot snapshot = UserSnapshot.EMPTY;
+  // goes up with every change
+  private long version;
+
+  private UserRegistry(ActorContext<Command> context, AtomicReference<UserSnapshot> published) {
     super(context);
+    this.published = published;
+    this.usersByName = published == null ? new HashMap<>() : null;
+    this.orderedUsers = published == null ? new TreeMap<>() : null;
+    publish();
   }
 
   public static Behavior<Command> create() {
-    return Behaviors.setup(UserRegistry::new);
+    return Behaviors.setup(context -> new UserRegistry(context, null));
+  }
+
+  /**
+   * A registry that also sets published to a new {@link UserSnapshot} after every change, before it
+   * replies to the change, and answers GetUser and GetUsers from it too. Reads may be served from published
+   * on any thread, writes must still go through the registry.
+   */
+  public static Behavior<Command> create(AtomicReference<UserSnapshot> published) {
+    return Behaviors.setup(context -> new UserRegistry(context, published));
+  }
+
+  /**
+   * The one of a number of registries that holds the user with the given name, when users are spread over
+   * several of them.
+   */
+  public static int shardOf(String name, int shards) {
+    return Math.floorMod(name.hashCode(), shards);
   }
 
   @Override
@@ -52,30 +96,67 @@ public class UserRegistry extends AbstractBehavior<UserRegistry.Command> {
   }
 
   private Behavior<Command> onGetUsers(GetUsers command) {
-    // We must be careful not to send out users since it is mutable
-    // so for this response we need to make a defensive copy
-    command.replyTo().tell(new Users(List.copyOf(users)));
+    if (published != null) {
+      command.replyTo().tell(snapshot.page(command.limit(), command.after()));
+      return this;
+    }
+    // only the requested page is copied out of the mutable index
+    NavigableMap<String, User> from =
+        command.after() == null ? orderedUsers : orderedUsers.tailMap(command.after(), false);
+    int limit = Math.max(command.limit(), 1);
+    List<User> page = new ArrayList<>(Math.min(limit, orderedUsers.size()));
+    String next = null;
+    for (User user : from.values()) {
+      if (page.size() == limit) {
+        next = page.get(page.size() - 1).name();
+        break;
+      }
+      page.add(user);
+    }
+    command.replyTo().tell(new Users(page, next));
     return this;
   }
 
   private Behavior<Command> onCreateUser(CreateUser command) {
-    users.add(command.user());
+    // a user with the same name is replaced
+    version++;
+    if (published != null) {
+      snapshot = snapshot.with(command.user(), version);
+      publish();
+    } else {
+      usersByName.put(command.user().name(), command.user());
+      orderedUsers.put(command.user().name(), command.user());
+    }
     command.replyTo().tell(new ActionPerformed(String.format("User %s created.", command.user().name())));
     return this;
   }
 
   private Behavior<Command> onGetUser(GetUser command) {
-    Optional<User> maybeUser = users.stream()
-        .filter(user -> user.name().equals(command.name()))
-        .findFirst();
-    command.replyTo().tell(new GetUserResponse(maybeUser));
+    Optional<User> user = published != null
+        ? snapshot.get(command.name())
+        : Optional.ofNullable(usersByName.get(command.name()));
+    command.replyTo().tell(new GetUserResponse(user));
     return this;
   }
 
   private Behavior<Command> onDeleteUser(DeleteUser command) {
-    users.removeIf(user -> user.name().equals(command.name()));
+    if (published != null) {
+      if (snapshot.get(command.name()).isPresent()) {
+        snapshot = snapshot.without(command.name(), ++version);
+        publish();
+      }
+    } else if (usersByName.remove(command.name()) != null) {
+      orderedUsers.remove(command.name());
+      version++;
+    }
     command.replyTo().tell(new ActionPerformed(String.format("User %s deleted.", command.name())));
     return this;
   }
 
+  private void publish() {
+    if (published != null) {
+      published.set(snapshot);
+    }
+  }
+
 }
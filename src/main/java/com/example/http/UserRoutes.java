@@ -1,23 +1,49 @@
 package com.example.http;
 
+import akka.NotUsed;
 import akka.actor.ExtendedActorSystem;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Scheduler;
 import akka.actor.typed.javadsl.AskPattern;
 import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpCharsets;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.MediaRange;
+import akka.http.javadsl.model.MediaType;
+import akka.http.javadsl.model.MediaTypes;
 import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.model.headers.EntityTag;
 import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Rejections;
 import akka.http.javadsl.server.Route;
+import akka.http.javadsl.unmarshalling.StringUnmarshallers;
+import akka.japi.Pair;
 import akka.serialization.jackson.JacksonObjectMapperProvider;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
 import com.example.http.UserRegistry.User;
+import com.example.http.UserRegistry.Users;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static akka.http.javadsl.server.Directives.*;
 
@@ -28,18 +54,84 @@ public class UserRoutes {
 
   private final static Logger log = LoggerFactory.getLogger(UserRoutes.class);
 
-  private final ActorRef<UserRegistry.Command> userRegistryActor;
+  // newline delimited JSON, one user per line
+  private static final ContentType NDJSON =
+      MediaTypes.applicationWithFixedCharset("x-ndjson", HttpCharsets.UTF_8).toContentType();
+
+  private static final ByteString NEWLINE = ByteString.fromString("\n");
+
+  // part of every ETag, as the registry versions start over when the process restarts and an ETag from
+  // before must not match the different users that then have the same version
+  static final String ETAG_EPOCH = Long.toHexString(new SecureRandom().nextLong());
+
+  // the registries the users are spread over by UserRegistry.shardOf
+  private final List<ActorRef<UserRegistry.Command>> userRegistryActors;
+
+  // the snapshots each registry publishes, reads are served from them instead of asking if not null
+  private final List<AtomicReference<UserSnapshot>> published;
 
   private final Duration askTimeout;
 
+  private final int pageSize;
+
+  private final int maxPageSize;
+
   private final Scheduler scheduler;
 
   private final ObjectMapper objectMapper;
 
+  /**
+   * The JSON of the page of users last rendered from snapshots, and what it was rendered for.
+   */
+  private record RenderedListing(long version, int limit, String after, byte[] json) {
+    boolean matches(long version, int limit, String after) {
+      return this.version == version && this.limit == limit && Objects.equals(this.after, after);
+    }
+  }
+
+  private final AtomicReference<RenderedListing> lastListing = new AtomicReference<>();
+
+  private record Cursor(String after) {}
+
   public UserRoutes(ActorSystem<?> system, ActorRef<UserRegistry.Command> userRegistryActor) {
-    this.userRegistryActor = userRegistryActor;
+    this(system, List.of(userRegistryActor), null);
+  }
+
+  /**
+   * Routes that read the users from the snapshots a registry created with
+   * {@link UserRegistry#create(AtomicReference)} publishes to published, and only send it the changes.
+   * Reads then carry the snapshot version, prefixed with an epoch of this process, as ETag, and a request
+   * whose If-None-Match matches it is answered with 304 Not Modified before anything is looked up or
+   * rendered.
+   */
+  public UserRoutes(
+      ActorSystem<?> system,
+      ActorRef<UserRegistry.Command> userRegistryActor,
+      AtomicReference<UserSnapshot> published) {
+    this(system, List.of(userRegistryActor), published == null ? null : List.of(published));
+  }
+
+  /**
+   * Routes over users spread across several registries, each user living in the one picked by
+   * {@link UserRegistry#shardOf}. Listing users asks all of them and merges their pages. If published is
+   * not null it holds the snapshots of the registries in the same order, and reads are served from them.
+   */
+  public UserRoutes(
+      ActorSystem<?> system,
+      List<ActorRef<UserRegistry.Command>> userRegistryActors,
+      List<AtomicReference<UserSnapshot>> published) {
+    if (userRegistryActors.isEmpty()) {
+      throw new IllegalArgumentException("At least one user registry is needed.");
+    }
+    if (published != null && published.size() != userRegistryActors.size()) {
+      throw new IllegalArgumentException("Expected a snapshot per user registry.");
+    }
+    this.userRegistryActors = List.copyOf(userRegistryActors);
+    this.published = published == null ? null : List.copyOf(published);
     scheduler = system.scheduler();
     askTimeout = system.settings().config().getDuration("my-app.routes.ask-timeout");
+    pageSize = system.settings().config().getInt("my-app.routes.page-size");
+    maxPageSize = system.settings().config().getInt("my-app.routes.max-page-size");
 
     if (!(system.classicSystem() instanceof ExtendedActorSystem extendedActorSystem)) {
       throw new IllegalArgumentException("Failed to get object mapper.");
@@ -47,20 +139,206 @@ public class UserRoutes {
     objectMapper = new JacksonObjectMapperProvider(extendedActorSystem).getOrCreate("akka-http", Optional.empty());
   }
 
+  private int shardOf(String name) {
+    return UserRegistry.shardOf(name, userRegistryActors.size());
+  }
+
+  private ActorRef<UserRegistry.Command> registryOf(String name) {
+    return userRegistryActors.get(shardOf(name));
+  }
+
   private CompletionStage<UserRegistry.GetUserResponse> getUser(String name) {
-    return AskPattern.ask(userRegistryActor, ref -> new UserRegistry.GetUser(name, ref), askTimeout, scheduler);
+    return AskPattern.ask(registryOf(name), ref -> new UserRegistry.GetUser(name, ref), askTimeout, scheduler);
   }
 
   private CompletionStage<UserRegistry.ActionPerformed> deleteUser(String name) {
-    return AskPattern.ask(userRegistryActor, ref -> new UserRegistry.DeleteUser(name, ref), askTimeout, scheduler);
+    return AskPattern.ask(registryOf(name), ref -> new UserRegistry.DeleteUser(name, ref), askTimeout, scheduler);
+  }
+
+  private CompletionStage<Users> getUsers(int pageLimit, String cursor) {
+    if (userRegistryActors.size() == 1) {
+      return AskPattern.ask(
+          userRegistryActors.get(0), ref -> new UserRegistry.GetUsers(pageLimit, cursor, ref), askTimeout, scheduler);
+    }
+    List<CompletableFuture<Users>> asks = new ArrayList<>(userRegistryActors.size());
+    for (ActorRef<UserRegistry.Command> userRegistryActor : userRegistryActors) {
+      asks.add(AskPattern.<UserRegistry.Command, Users>ask(
+              userRegistryActor, ref -> new UserRegistry.GetUsers(pageLimit, cursor, ref), askTimeout, scheduler)
+          .toCompletableFuture());
+    }
+    return CompletableFuture.allOf(asks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      List<Users> pages = new ArrayList<>(asks.size());
+      asks.forEach(ask -> pages.add(ask.join()));
+      return mergePages(pages, pageLimit);
+    });
   }
 
-  private CompletionStage<UserRegistry.Users> getUsers() {
-    return AskPattern.ask(userRegistryActor, UserRegistry.GetUsers::new, askTimeout, scheduler);
+  /**
+   * The first limit users of pages that each hold the first limit users of a registry after the same
+   * cursor, which are the first limit users of all registries after it.
+   */
+  static Users mergePages(List<Users> pages, int limit) {
+    if (pages.size() == 1) {
+      return pages.get(0);
+    }
+    List<User> merged = new ArrayList<>();
+    boolean more = false;
+    for (Users page : pages) {
+      merged.addAll(page.users());
+      more |= page.next() != null;
+    }
+    merged.sort(Comparator.comparing(User::name));
+    if (merged.size() > limit) {
+      merged = new ArrayList<>(merged.subList(0, limit));
+      more = true;
+    }
+    return new Users(merged, more ? merged.get(merged.size() - 1).name() : null);
   }
 
   private CompletionStage<UserRegistry.ActionPerformed> createUser(User user) {
-    return AskPattern.ask(userRegistryActor, ref -> new UserRegistry.CreateUser(user, ref), askTimeout, scheduler);
+    return AskPattern.ask(
+        registryOf(user.name()), ref -> new UserRegistry.CreateUser(user, ref), askTimeout, scheduler);
+  }
+
+  /**
+   * Whether the client gives ndjson a higher q-value than JSON, each taken from the most specific media
+   * range matching it (RFC 7231 5.3.2). A tie keeps the page of JSON.
+   */
+  private static boolean prefersNdjson(Accept accept) {
+    return quality(accept, NDJSON.mediaType(), MediaTypes.APPLICATION_JSON)
+        > quality(accept, MediaTypes.APPLICATION_JSON, NDJSON.mediaType());
+  }
+
+  // the q-value of the most specific range matching the media type, 0 if none does; both are application
+  // types, so a range that also matches the other one is application/* or */*
+  private static float quality(Accept accept, MediaType mediaType, MediaType other) {
+    float quality = 0f;
+    int specificity = -1;
+    for (MediaRange range : accept.getMediaRanges()) {
+      if (range.matches(mediaType)) {
+        int rangeSpecificity = !range.matches(other) ? 2 : range.mainType().equals("*") ? 0 : 1;
+        if (rangeSpecificity > specificity) {
+          specificity = rangeSpecificity;
+          quality = range.qValue();
+        }
+      }
+    }
+    return quality;
+  }
+
+  private Route listUsers(
+      Optional<Integer> limit, Optional<String> after, Optional<String> stream, Optional<Accept> accept) {
+    if (stream.isPresent()) {
+      switch (stream.get()) {
+        case "json":
+          return streamUsers(after, false);
+        case "ndjson":
+          return streamUsers(after, true);
+        default:
+          return reject(Rejections.malformedQueryParam("stream", "Expected json or ndjson."));
+      }
+    }
+    if (accept.filter(UserRoutes::prefersNdjson).isPresent()) {
+      return streamUsers(after, true);
+    }
+
+    int pageLimit = Math.max(1, Math.min(limit.orElse(pageSize), maxPageSize));
+    String cursor = after.orElse(null);
+    if (published == null) {
+      return onSuccess(getUsers(pageLimit, cursor),
+          users -> complete(StatusCodes.OK, users, Jackson.marshaller(objectMapper))
+      );
+    }
+    // the same snapshots decide the ETag and the page
+    List<UserSnapshot> snapshots = snapshots();
+    long listingVersion = snapshots.stream().mapToLong(UserSnapshot::version).sum();
+    return conditional(entityTag(listingVersion), () ->
+        complete(HttpEntities.create(
+            ContentTypes.APPLICATION_JSON, renderListing(snapshots, listingVersion, pageLimit, cursor)))
+    );
+  }
+
+  /**
+   * The JSON of a page of users, only rendered again when the registries changed or another page is asked for.
+   */
+  private byte[] renderListing(List<UserSnapshot> snapshots, long version, int pageLimit, String cursor) {
+    RenderedListing rendered = lastListing.get();
+    if (rendered != null && rendered.matches(version, pageLimit, cursor)) {
+      return rendered.json();
+    }
+    byte[] json = toJson(page(snapshots, pageLimit, cursor));
+    lastListing.set(new RenderedListing(version, pageLimit, cursor, json));
+    return json;
+  }
+
+  private static Users page(List<UserSnapshot> snapshots, int pageLimit, String cursor) {
+    List<Users> pages = new ArrayList<>(snapshots.size());
+    for (UserSnapshot snapshot : snapshots) {
+      pages.add(snapshot.page(pageLimit, cursor));
+    }
+    return mergePages(pages, pageLimit);
+  }
+
+  private List<UserSnapshot> snapshots() {
+    List<UserSnapshot> snapshots = new ArrayList<>(published.size());
+    published.forEach(snapshot -> snapshots.add(snapshot.get()));
+    return snapshots;
+  }
+
+  private byte[] toJson(Object value) {
+    try {
+      return objectMapper.writeValueAsBytes(value);
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * All users after the cursor, or all of them if it is null, fetched a page at a time so that no more
+   * than one page is held however many users there are.
+   */
+  private Source<User, NotUsed> streamUsers(String after) {
+    // the state is the cursor of the page to fetch next, and empty after the last page
+    return Source.<Optional<Cursor>, List<User>>unfoldAsync(Optional.of(new Cursor(after)), state -> {
+          if (state.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+          }
+          String cursor = state.get().after();
+          CompletionStage<Users> next = published == null
+              ? getUsers(pageSize, cursor)
+              : CompletableFuture.completedFuture(page(snapshots(), pageSize, cursor));
+          return next.thenApply(users ->
+              Optional.of(Pair.create(Optional.ofNullable(users.next()).map(Cursor::new), users.users())));
+        })
+        .mapConcat(users -> users);
+  }
+
+  /**
+   * Streams the users as one chunked JSON array or, with ndjson, as one JSON object per line.
+   */
+  private Route streamUsers(Optional<String> after, boolean ndjson) {
+    Source<ByteString, NotUsed> users =
+        streamUsers(after.orElse(null)).map(user -> ByteString.fromArray(toJson(user)));
+    if (ndjson) {
+      return complete(HttpEntities.createChunked(NDJSON, users.map(user -> user.concat(NEWLINE))));
+    }
+    return complete(HttpEntities.createChunked(ContentTypes.APPLICATION_JSON,
+        users.intersperse(ByteString.fromString("["), ByteString.fromString(","), ByteString.fromString("]"))));
+  }
+
+  private Route userFromSnapshot(String name) {
+    UserSnapshot snapshot = published.get(shardOf(name)).get();
+    OptionalLong version = snapshot.versionOf(name);
+    if (version.isEmpty()) {
+      return reject();
+    }
+    return conditional(entityTag(version.getAsLong()), () ->
+        complete(StatusCodes.OK, snapshot.get(name).get(), Jackson.marshaller(objectMapper))
+    );
+  }
+
+  private static EntityTag entityTag(long version) {
+    return EntityTag.create(ETAG_EPOCH + "-" + version, false);
   }
 
   /**
@@ -72,8 +350,14 @@ public class UserRoutes {
             pathEnd(() ->
                 concat(
                     get(() ->
-                        onSuccess(getUsers(),
-                            users -> complete(StatusCodes.OK, users, Jackson.marshaller(objectMapper))
+                        parameterOptional(StringUnmarshallers.INTEGER, "limit", limit ->
+                            parameterOptional("after", after ->
+                                parameterOptional("stream", stream ->
+                                    optionalHeaderValueByType(Accept.class, accept ->
+                                        listUsers(limit, after, stream, accept)
+                                    )
+                                )
+                            )
                         )
                     ),
                     post(() ->
@@ -90,7 +374,7 @@ public class UserRoutes {
             ),
             path(PathMatchers.segment(), (String name) ->
                 concat(
-                    get(() ->
+                    get(() -> published != null ? userFromSnapshot(name) :
                         rejectEmptyResponse(() ->
                             onSuccess(getUser(name), performed ->
                                 complete(StatusCodes.OK, performed.maybeUser(), Jackson.marshaller(objectMapper))
@@ -0,0 +1,203 @@
+package com.example.http;
+
+import com.example.http.UserRegistry.User;
+import com.example.http.UserRegistry.Users;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * An immutable state of a {@link UserRegistry}, which it publishes after every change so that reads can
+ * be served on any thread without asking it.
+ * <p>
+ * The users are kept in a persistent AVL tree ordered by name: a change copies only the path to the
+ * changed node and shares everything else with the previous snapshot, so publishing is logarithmic in the
+ * number of users and a reader can keep using an older snapshot for as long as it likes.
+ * <p>
+ * A snapshot carries the version of the registry it was taken at, which goes up with every change, and
+ * every user the version at which it was last changed, so readers can tell whether anything changed.
+ */
+public final class UserSnapshot {
+
+  private record Node(String name, User user, long version, Node left, Node right, int height) {}
+
+  public static final UserSnapshot EMPTY = new UserSnapshot(null, 0, 0L);
+
+  private final Node root;
+  private final int size;
+  private final long version;
+
+  private UserSnapshot(Node root, int size, long version) {
+    this.root = root;
+    this.size = size;
+    this.version = version;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long version() {
+    return version;
+  }
+
+  public Optional<User> get(String name) {
+    Node node = find(name);
+    return node == null ? Optional.empty() : Optional.of(node.user);
+  }
+
+  /**
+   * The registry version at which the user of the given name was last changed, empty if there is none.
+   */
+  public OptionalLong versionOf(String name) {
+    Node node = find(name);
+    return node == null ? OptionalLong.empty() : OptionalLong.of(node.version);
+  }
+
+  private Node find(String name) {
+    Node node = root;
+    while (node != null) {
+      int cmp = name.compareTo(node.name);
+      if (cmp == 0) {
+        return node;
+      }
+      node = cmp < 0 ? node.left : node.right;
+    }
+    return null;
+  }
+
+  /**
+   * At most limit users in the order of their names, starting after the given name or at the first user
+   * if after is null, like {@link UserRegistry.GetUsers} answers.
+   */
+  public Users page(int limit, String after) {
+    limit = Math.max(limit, 1);
+    Deque<Node> path = new ArrayDeque<>();
+    pushLeft(path, root, after);
+    List<User> page = new ArrayList<>(Math.min(limit, size));
+    String next = null;
+    while (!path.isEmpty()) {
+      if (page.size() == limit) {
+        next = page.get(page.size() - 1).name();
+        break;
+      }
+      Node node = path.pop();
+      page.add(node.user);
+      pushLeft(path, node.right, null);
+    }
+    return new Users(page, next);
+  }
+
+  // pushes the nodes after the given name, or all if it is null, on the way down to the smallest one
+  private static void pushLeft(Deque<Node> path, Node node, String after) {
+    while (node != null) {
+      if (after == null || node.name.compareTo(after) > 0) {
+        path.push(node);
+        node = node.left;
+      } else {
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * This snapshot at the given version, with the user added, replacing a user with the same name.
+   */
+  public UserSnapshot with(User user, long version) {
+    boolean replaced = find(user.name()) != null;
+    return new UserSnapshot(put(root, user, version), replaced ? size : size + 1, version);
+  }
+
+  /**
+   * This snapshot at the given version, without the user of the given name.
+   */
+  public UserSnapshot without(String name, long version) {
+    if (find(name) == null) {
+      return new UserSnapshot(root, size, version);
+    }
+    return new UserSnapshot(remove(root, name), size - 1, version);
+  }
+
+  private static int height(Node node) {
+    return node == null ? 0 : node.height;
+  }
+
+  private static Node node(String name, User user, long version, Node left, Node right) {
+    return new Node(name, user, version, left, right, 1 + Math.max(height(left), height(right)));
+  }
+
+  private static Node balance(Node node, Node left, Node right) {
+    int leftHeight = height(left);
+    int rightHeight = height(right);
+    if (leftHeight > rightHeight + 1) {
+      if (height(left.left) >= height(left.right)) {
+        return withChildren(left, left.left, withChildren(node, left.right, right));
+      }
+      Node pivot = left.right;
+      return withChildren(pivot,
+          withChildren(left, left.left, pivot.left), withChildren(node, pivot.right, right));
+    }
+    if (rightHeight > leftHeight + 1) {
+      if (height(right.right) >= height(right.left)) {
+        return withChildren(right, withChildren(node, left, right.left), right.right);
+      }
+      Node pivot = right.left;
+      return withChildren(pivot,
+          withChildren(node, left, pivot.left), withChildren(right, pivot.right, right.right));
+    }
+    return withChildren(node, left, right);
+  }
+
+  // the user of the node with other children
+  private static Node withChildren(Node node, Node left, Node right) {
+    return node(node.name, node.user, node.version, left, right);
+  }
+
+  private static Node put(Node node, User user, long version) {
+    if (node == null) {
+      return node(user.name(), user, version, null, null);
+    }
+    int cmp = user.name().compareTo(node.name);
+    if (cmp < 0) {
+      return balance(node, put(node.left, user, version), node.right);
+    } else if (cmp > 0) {
+      return balance(node, node.left, put(node.right, user, version));
+    } else {
+      return new Node(node.name, user, version, node.left, node.right, node.height);
+    }
+  }
+
+  private static Node remove(Node node, String name) {
+    if (node == null) {
+      return null;
+    }
+    int cmp = name.compareTo(node.name);
+    if (cmp < 0) {
+      return balance(node, remove(node.left, name), node.right);
+    } else if (cmp > 0) {
+      return balance(node, node.left, remove(node.right, name));
+    }
+    if (node.left == null) {
+      return node.right;
+    }
+    if (node.right == null) {
+      return node.left;
+    }
+    Node smallest = node.right;
+    while (smallest.left != null) {
+      smallest = smallest.left;
+    }
+    return balance(smallest, node.left, removeSmallest(node.right));
+  }
+
+  private static Node removeSmallest(Node node) {
+    if (node.left == null) {
+      return node.right;
+    }
+    return balance(node, removeSmallest(node.left), node.right);
+  }
+}
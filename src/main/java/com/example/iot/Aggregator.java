@@ -0,0 +1,85 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sends out a number of requests and combines the replies into one answer, or whatever replies
+ * arrived before the timeout.
+ */
+public class Aggregator<Reply, Aggregate> extends AbstractBehavior<Aggregator.Command> {
+
+  public interface Command {}
+
+  private enum CollectionTimeout implements Command {INSTANCE}
+
+  private record WrappedReply<R>(R reply) implements Command {}
+
+  public static <R, A> Behavior<Command> create(
+      Class<R> replyClass,
+      Consumer<ActorRef<R>> sendRequests,
+      int expectedReplies,
+      ActorRef<A> replyTo,
+      Function<List<R>, A> aggregateReplies,
+      Duration timeout) {
+    return Behaviors.setup(
+        context -> Behaviors.withTimers(
+            timers -> new Aggregator<>(
+                replyClass, sendRequests, expectedReplies, replyTo, aggregateReplies, timeout, context, timers)
+        )
+    );
+  }
+
+  private final int expectedReplies;
+  private final ActorRef<Aggregate> replyTo;
+  private final Function<List<Reply>, Aggregate> aggregateReplies;
+  private final List<Reply> replies = new ArrayList<>();
+
+  private Aggregator(
+      Class<Reply> replyClass,
+      Consumer<ActorRef<Reply>> sendRequests,
+      int expectedReplies,
+      ActorRef<Aggregate> replyTo,
+      Function<List<Reply>, Aggregate> aggregateReplies,
+      Duration timeout,
+      ActorContext<Command> context,
+      TimerScheduler<Command> timers) {
+    super(context);
+    this.expectedReplies = expectedReplies;
+    this.replyTo = replyTo;
+    this.aggregateReplies = aggregateReplies;
+
+    timers.startSingleTimer(CollectionTimeout.INSTANCE, timeout);
+    sendRequests.accept(context.messageAdapter(replyClass, WrappedReply::new));
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(WrappedReply.class, this::onReply)
+        .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+        .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Behavior<Command> onReply(WrappedReply<?> wrapped) {
+    replies.add((Reply) wrapped.reply());
+    if (replies.size() == expectedReplies) {
+      replyTo.tell(aggregateReplies.apply(List.copyOf(replies)));
+      return Behaviors.stopped();
+    }
+    return this;
+  }
+
+  private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+    replyTo.tell(aggregateReplies.apply(List.copyOf(replies)));
+    return Behaviors.stopped();
+  }
+}
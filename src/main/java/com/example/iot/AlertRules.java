@@ -0,0 +1,135 @@
+package com.example.iot;
+
+import com.example.iot.DeviceManager.AlertRule;
+import com.example.iot.DeviceManager.RateOfChangeRule;
+import com.example.iot.DeviceManager.ThresholdRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The alert rules of a group, evaluated one recorded value at a time.
+ * <p>
+ * Devices are identified by their slot in the group's {@link DeviceTable}. Per rule a bit set holds the
+ * slots with a raised alert, and the previous value of every slot is kept for the rate of change, so
+ * evaluating a value only looks at that one device and allocates nothing unless an alert changes.
+ */
+final class AlertRules {
+
+  /**
+   * Receives an alert that was raised or cleared by a value.
+   */
+  interface Sink {
+    void alert(String deviceId, String ruleId, boolean raised, double value, long timestamp);
+  }
+
+  private final List<AlertRule> rules = new ArrayList<>();
+  // per rule, at the same index, the slots with a raised alert
+  private final List<BitSet> raised = new ArrayList<>();
+
+  private boolean[] hasPrevious = new boolean[16];
+  private double[] previousValues = new double[16];
+  private long[] previousTimestamps = new long[16];
+
+  boolean isEmpty() {
+    return rules.isEmpty();
+  }
+
+  /**
+   * Adds the rule, replacing a rule with the same id. A replaced rule starts out with no raised alerts.
+   */
+  void add(AlertRule rule) {
+    int index = indexOf(rule.ruleId());
+    if (index >= 0) {
+      rules.set(index, rule);
+      raised.set(index, new BitSet());
+    } else {
+      rules.add(rule);
+      raised.add(new BitSet());
+    }
+  }
+
+  boolean remove(String ruleId) {
+    int index = indexOf(ruleId);
+    if (index < 0) {
+      return false;
+    }
+    rules.remove(index);
+    raised.remove(index);
+    return true;
+  }
+
+  private int indexOf(String ruleId) {
+    for (int i = 0; i < rules.size(); i++) {
+      if (rules.get(i).ruleId().equals(ruleId)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Forgets the device in the slot, which is about to be reused for another one.
+   */
+  void clear(int slot) {
+    if (slot < hasPrevious.length) {
+      hasPrevious[slot] = false;
+    }
+    raised.forEach(slots -> slots.clear(slot));
+  }
+
+  void evaluate(int slot, String deviceId, double value, long timestamp, Sink sink) {
+    if (slot >= hasPrevious.length) {
+      int capacity = Math.max(hasPrevious.length * 2, slot + 1);
+      hasPrevious = Arrays.copyOf(hasPrevious, capacity);
+      previousValues = Arrays.copyOf(previousValues, capacity);
+      previousTimestamps = Arrays.copyOf(previousTimestamps, capacity);
+    }
+    // change per second against the previous value, NaN if there is none to compare with. Values recorded
+    // in the same millisecond, like a batch, are all compared with the last value from before it
+    double rate = Double.NaN;
+    if (!hasPrevious[slot]) {
+      hasPrevious[slot] = true;
+      previousValues[slot] = value;
+      previousTimestamps[slot] = timestamp;
+    } else if (timestamp > previousTimestamps[slot]) {
+      rate = Math.abs(value - previousValues[slot]) * 1000.0 / (timestamp - previousTimestamps[slot]);
+      previousValues[slot] = value;
+      previousTimestamps[slot] = timestamp;
+    }
+
+    for (int i = 0; i < rules.size(); i++) {
+      AlertRule rule = rules.get(i);
+      double measured;
+      double raiseAbove;
+      double clearBelow;
+      if (rule instanceof ThresholdRule threshold) {
+        measured = value;
+        raiseAbove = threshold.raiseAbove();
+        clearBelow = threshold.clearBelow();
+      } else if (rule instanceof RateOfChangeRule rateOfChange) {
+        if (Double.isNaN(rate)) {
+          continue;
+        }
+        measured = rate;
+        raiseAbove = rateOfChange.raiseAbovePerSecond();
+        clearBelow = rateOfChange.clearBelowPerSecond();
+      } else {
+        continue;
+      }
+
+      BitSet slots = raised.get(i);
+      if (!slots.get(slot)) {
+        if (measured > raiseAbove) {
+          slots.set(slot);
+          sink.alert(deviceId, rule.ruleId(), true, value, timestamp);
+        }
+      } else if (measured < clearBelow) {
+        slots.clear(slot);
+        sink.alert(deviceId, rule.ruleId(), false, value, timestamp);
+      }
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package com.example.iot;
+
+/**
+ * Marker for messages that are sent between cluster nodes, bound to the Jackson CBOR serializer
+ * in iot-cluster.conf.
+ */
+public interface CborSerializable {}
@@ -0,0 +1,217 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.StashBuffer;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import com.example.iot.DeviceManager.TemperatureSample;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The members of a device group in cluster mode, a sharded entity that lives on one node and moves with its
+ * shard. The devices are sharded entities of their own, the group only knows which of them were tracked, so
+ * nothing is sent to a device that wasn't, and hands the values of a batch to its devices.
+ * <p>
+ * The members are not persisted. When its shard is handed off the group sends them to its own next
+ * incarnation, which the shard region holds back until the shard is started on the new node, so they
+ * survive rebalancing and nodes that leave. A group on a node that crashes loses its members, like the
+ * devices on it lose their readings. A group without members passivates right away.
+ * <p>
+ * Messages sent from other nodes during a hand-off may reach the next incarnation before the members do.
+ * A question about a group that has no members yet but that the asking node knows from the replicated
+ * group ids is therefore stashed until the members are restored or tracked, or until they didn't arrive
+ * within {@link #RESTORE_TIMEOUT}.
+ */
+final class ClusterDeviceGroup extends AbstractBehavior<ClusterDeviceGroup.Command> {
+
+  static final EntityTypeKey<Command> GROUP_KEY = EntityTypeKey.create(Command.class, "DeviceGroup");
+
+  // how long questions wait for the members of a group known to have had some
+  static final Duration RESTORE_TIMEOUT = Duration.ofSeconds(1);
+  private static final int STASH_CAPACITY = 1000;
+
+  interface Command extends CborSerializable {}
+
+  // tracks the device and lets it answer with the actor it runs in
+  record TrackMember(String deviceId, ActorRef<Device.Identity> replyTo) implements Command {}
+
+  // known is whether the asking node has the group in its replicated group ids, and expects members
+  record CheckMember(String deviceId, boolean known, ActorRef<Membership> replyTo) implements Command {}
+
+  record Membership(boolean member) implements CborSerializable {}
+
+  record GetMembers(boolean known, ActorRef<Members> replyTo) implements Command {}
+
+  record Members(Set<String> deviceIds) implements CborSerializable {}
+
+  record RecordSamples(List<TemperatureSample> samples, boolean known, ActorRef<SamplesRecorded> replyTo)
+      implements Command {}
+
+  record SamplesRecorded(int accepted, int rejected) implements CborSerializable {}
+
+  // the members of the previous incarnation, sent to the next one on hand-off
+  record Restore(Set<String> deviceIds) implements Command {}
+
+  enum Handoff implements Command {
+    INSTANCE
+  }
+
+  private enum RestoreTimedOut implements Command {
+    INSTANCE
+  }
+
+  static Behavior<Command> create(EntityContext<Command> entityContext) {
+    return Behaviors.withStash(STASH_CAPACITY, stash ->
+        Behaviors.withTimers(timers ->
+            Behaviors.setup(context -> new ClusterDeviceGroup(context, entityContext, stash, timers))));
+  }
+
+  private final String groupId;
+  private final EntityContext<Command> entityContext;
+  private final ClusterSharding sharding;
+  private final StashBuffer<Command> stash;
+  private final TimerScheduler<Command> timers;
+  private final Set<String> members = new HashSet<>();
+  // whether questions no longer wait for members, once some arrived or didn't in time
+  private boolean settled;
+
+  private ClusterDeviceGroup(
+      ActorContext<Command> context,
+      EntityContext<Command> entityContext,
+      StashBuffer<Command> stash,
+      TimerScheduler<Command> timers) {
+    super(context);
+    this.groupId = entityContext.getEntityId();
+    this.entityContext = entityContext;
+    this.sharding = ClusterSharding.get(context.getSystem());
+    this.stash = stash;
+    this.timers = timers;
+  }
+
+  private EntityRef<Device.Command> device(String deviceId) {
+    return sharding.entityRefFor(ClusterDeviceManager.DEVICE_KEY, ClusterDeviceManager.entityId(groupId, deviceId));
+  }
+
+  // asked about a group that has no devices, which is only started by asking
+  private ClusterDeviceGroup passivateIfEmpty() {
+    if (members.isEmpty()) {
+      entityContext.getShard().tell(new ClusterSharding.Passivate<>(getContext().getSelf()));
+    }
+    return this;
+  }
+
+  // stashes a question about a known group while its members may still be on their way
+  private boolean awaitMembers(Command question, boolean known) {
+    if (settled || !known || !members.isEmpty()) {
+      return false;
+    }
+    if (stash.isFull()) {
+      getContext().getLog().warn("Too many questions waiting for the members of group {}", groupId);
+      return false;
+    }
+    stash.stash(question);
+    if (!timers.isTimerActive(RestoreTimedOut.INSTANCE)) {
+      timers.startSingleTimer(RestoreTimedOut.INSTANCE, RESTORE_TIMEOUT);
+    }
+    return true;
+  }
+
+  private Behavior<Command> settle() {
+    settled = true;
+    timers.cancel(RestoreTimedOut.INSTANCE);
+    return stash.unstashAll(this);
+  }
+
+  private Behavior<Command> onTrackMember(TrackMember t) {
+    members.add(t.deviceId());
+    device(t.deviceId()).tell(new Device.Identify(t.replyTo()));
+    return settled ? this : settle();
+  }
+
+  private ClusterDeviceGroup onCheckMember(CheckMember c) {
+    if (awaitMembers(c, c.known())) {
+      return this;
+    }
+    c.replyTo().tell(new Membership(members.contains(c.deviceId())));
+    return passivateIfEmpty();
+  }
+
+  private ClusterDeviceGroup onGetMembers(GetMembers g) {
+    if (awaitMembers(g, g.known())) {
+      return this;
+    }
+    g.replyTo().tell(new Members(Set.copyOf(members)));
+    return passivateIfEmpty();
+  }
+
+  private ClusterDeviceGroup onRecordSamples(RecordSamples r) {
+    if (awaitMembers(r, r.known())) {
+      return this;
+    }
+    // like DeviceGroup, sizes one primitive array per device first and fills them in arrival order
+    Map<String, int[]> remaining = new HashMap<>();
+    int rejected = 0;
+    for (TemperatureSample sample : r.samples()) {
+      if (members.contains(sample.deviceId())) {
+        remaining.computeIfAbsent(sample.deviceId(), k -> new int[1])[0]++;
+      } else {
+        rejected++;
+      }
+    }
+    Map<String, double[]> valuesByDevice = new HashMap<>();
+    for (TemperatureSample sample : r.samples()) {
+      int[] left = remaining.get(sample.deviceId());
+      if (left != null) {
+        double[] values = valuesByDevice.computeIfAbsent(sample.deviceId(), k -> new double[left[0]]);
+        values[values.length - left[0]--] = sample.value();
+      }
+    }
+    valuesByDevice.forEach((deviceId, values) -> device(deviceId).tell(new Device.RecordTemperatures(values)));
+    r.replyTo().tell(new SamplesRecorded(r.samples().size() - rejected, rejected));
+    return passivateIfEmpty();
+  }
+
+  private Behavior<Command> onRestore(Restore r) {
+    members.addAll(r.deviceIds());
+    return settled ? this : settle();
+  }
+
+  private Behavior<Command> onRestoreTimedOut() {
+    getContext().getLog().warn("Members of group {} were not restored, its node may have crashed", groupId);
+    return settle();
+  }
+
+  private Behavior<Command> onHandoff() {
+    if (!members.isEmpty()) {
+      sharding.entityRefFor(GROUP_KEY, groupId).tell(new Restore(Set.copyOf(members)));
+    }
+    return Behaviors.stopped();
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(TrackMember.class, this::onTrackMember)
+        .onMessage(CheckMember.class, this::onCheckMember)
+        .onMessage(GetMembers.class, this::onGetMembers)
+        .onMessage(RecordSamples.class, this::onRecordSamples)
+        .onMessage(Restore.class, this::onRestore)
+        .onMessage(RestoreTimedOut.class, t -> onRestoreTimedOut())
+        .onMessage(Handoff.class, h -> onHandoff())
+        .build();
+  }
+}
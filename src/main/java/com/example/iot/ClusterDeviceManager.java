@@ -0,0 +1,349 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.ORSet;
+import akka.cluster.ddata.ORSetKey;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.ddata.typed.javadsl.DistributedData;
+import akka.cluster.ddata.typed.javadsl.Replicator;
+import akka.cluster.ddata.typed.javadsl.ReplicatorMessageAdapter;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.pattern.StatusReply;
+import akka.stream.javadsl.Source;
+import com.example.iot.DeviceManager.*;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Speaks the {@link DeviceManager} protocol on one node of a cluster in which every {@link Device} is a
+ * sharded entity, so the devices are spread over all nodes and move when nodes join or leave.
+ * <p>
+ * Which devices belong to a group is only known to the group, a sharded {@link ClusterDeviceGroup} entity,
+ * which every node asks about the members before it sends anything to the devices, through their entity refs.
+ * The ids of the groups are kept in a replicated {@link ORSet} that every node holds a copy of, so other
+ * nodes may not list a new group for a moment after its first device was tracked. Device readings are not
+ * replicated, a device that moves to another node starts without a reading.
+ * <p>
+ * Devices don't push their readings in cluster mode, so temperature change subscriptions, alert rules and
+ * rollups are answered with an error.
+ */
+public class ClusterDeviceManager extends AbstractBehavior<DeviceManager.Command> {
+
+  public static final EntityTypeKey<Device.Command> DEVICE_KEY =
+      EntityTypeKey.create(Device.Command.class, "Device");
+
+  private static final Key<ORSet<String>> GROUPS_KEY = ORSetKey.create("iot-groups");
+
+  private record GroupsChanged(Replicator.SubscribeResponse<ORSet<String>> response)
+      implements DeviceManager.Command {}
+
+  private record GroupsUpdated(Replicator.UpdateResponse<ORSet<String>> response)
+      implements DeviceManager.Command {}
+
+  // identity is null if the group or the device didn't answer in time
+  private record DeviceIdentified(RequestTrackDevice request, Device.Identity identity)
+      implements DeviceManager.Command {}
+
+  private record MembershipChecked(ForwardToDevice forward, boolean member) implements DeviceManager.Command {}
+
+  // the members of the group a request is about, null if the group didn't answer in time
+  private record GroupMembers(DeviceManager.Command request, String groupId, Set<String> deviceIds)
+      implements DeviceManager.Command {}
+
+  /**
+   * Starts sharding of the device and group entities on this node, has to be called on every node of the cluster.
+   */
+  public static void initSharding(ActorSystem<?> system) {
+    ClusterSharding sharding = ClusterSharding.get(system);
+    sharding.init(
+        Entity.of(DEVICE_KEY, entityContext -> {
+              String entityId = entityContext.getEntityId();
+              int separator = entityId.indexOf('|');
+              return Device.create(
+                  URLDecoder.decode(entityId.substring(0, separator), StandardCharsets.UTF_8),
+                  entityId.substring(separator + 1));
+            })
+            .withStopMessage(Device.Passivate.INSTANCE));
+    sharding.init(
+        Entity.of(ClusterDeviceGroup.GROUP_KEY, ClusterDeviceGroup::create)
+            .withStopMessage(ClusterDeviceGroup.Handoff.INSTANCE));
+  }
+
+  /**
+   * The group id is encoded, so the first separator always ends it.
+   */
+  public static String entityId(String groupId, String deviceId) {
+    return URLEncoder.encode(groupId, StandardCharsets.UTF_8) + "|" + deviceId;
+  }
+
+  public static Behavior<DeviceManager.Command> create() {
+    return Behaviors.setup(
+        context -> create(IotSettings.create(context.getSystem().settings().config())));
+  }
+
+  public static Behavior<DeviceManager.Command> create(IotSettings settings) {
+    return Behaviors.setup(context -> {
+      initSharding(context.getSystem());
+      return DistributedData.<DeviceManager.Command, ORSet<String>>withReplicatorMessageAdapter(
+          replicator -> new ClusterDeviceManager(context, replicator, settings));
+    });
+  }
+
+  private final IotSettings settings;
+  private final ClusterSharding sharding;
+  private final ReplicatorMessageAdapter<DeviceManager.Command, ORSet<String>> replicator;
+  private final SelfUniqueAddress node;
+
+  // this node's view of the replicated group ids, never shrinks since devices are not removed
+  private final Set<String> groupIds = new HashSet<>();
+
+  private ClusterDeviceManager(
+      ActorContext<DeviceManager.Command> context,
+      ReplicatorMessageAdapter<DeviceManager.Command, ORSet<String>> replicator,
+      IotSettings settings) {
+    super(context);
+    this.settings = settings;
+    this.sharding = ClusterSharding.get(context.getSystem());
+    this.replicator = replicator;
+    this.node = DistributedData.get(context.getSystem()).selfUniqueAddress();
+    replicator.subscribe(GROUPS_KEY, GroupsChanged::new);
+    context.getLog().info("ClusterDeviceManager started");
+  }
+
+  private EntityRef<ClusterDeviceGroup.Command> group(String groupId) {
+    return sharding.entityRefFor(ClusterDeviceGroup.GROUP_KEY, groupId);
+  }
+
+  private EntityRef<Device.Command> device(String groupId, String deviceId) {
+    return sharding.entityRefFor(DEVICE_KEY, entityId(groupId, deviceId));
+  }
+
+  private ClusterDeviceManager onTrackDevice(RequestTrackDevice r) {
+    if (groupIds.add(r.groupId())) {
+      replicator.askUpdate(
+          replyTo -> new Replicator.Update<>(GROUPS_KEY, ORSet.create(), Replicator.writeLocal(), replyTo,
+              groups -> groups.add(node, r.groupId())),
+          GroupsUpdated::new);
+    }
+    getContext().ask(
+        Device.Identity.class,
+        group(r.groupId()),
+        settings.queryTimeout(),
+        replyTo -> new ClusterDeviceGroup.TrackMember(r.deviceId(), replyTo),
+        (identity, failure) -> new DeviceIdentified(r, identity));
+    return this;
+  }
+
+  private ClusterDeviceManager onDeviceIdentified(DeviceIdentified identified) {
+    RequestTrackDevice r = identified.request();
+    if (identified.identity() != null) {
+      r.replyTo().tell(new DeviceRegistered(identified.identity().device()));
+    } else {
+      getContext().getLog().warn("Device {} in group {} did not answer in time", r.deviceId(), r.groupId());
+    }
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  private ClusterDeviceManager onGroupsChanged(GroupsChanged changed) {
+    if (changed.response() instanceof Replicator.Changed) {
+      groupIds.addAll(((Replicator.Changed<ORSet<String>>) changed.response()).dataValue().getElements());
+    }
+    return this;
+  }
+
+  private ClusterDeviceManager onGroupsUpdated(GroupsUpdated updated) {
+    if (!(updated.response() instanceof Replicator.UpdateSuccess)) {
+      getContext().getLog().warn("Group ids not updated: {}", updated.response());
+    }
+    return this;
+  }
+
+  private ClusterDeviceManager askMembers(String groupId, DeviceManager.Command request) {
+    getContext().ask(
+        ClusterDeviceGroup.Members.class,
+        group(groupId),
+        settings.queryTimeout(),
+        replyTo -> new ClusterDeviceGroup.GetMembers(groupIds.contains(groupId), replyTo),
+        (members, failure) -> new GroupMembers(request, groupId, members != null ? members.deviceIds() : null));
+    return this;
+  }
+
+  private ClusterDeviceManager onGroupMembers(GroupMembers m) {
+    if (m.deviceIds() == null) {
+      getContext().getLog().warn("Group {} did not answer in time, dropping {}",
+          m.groupId(), m.request().getClass().getSimpleName());
+      return this;
+    }
+    if (m.request() instanceof RequestDeviceList r) {
+      r.replyTo().tell(new ReplyDeviceList(r.requestId(), m.deviceIds()));
+    } else if (m.request() instanceof RequestAllTemperatures r) {
+      if (m.deviceIds().isEmpty()) {
+        r.replyTo().tell(new RespondAllTemperatures(r.requestId(), Map.of()));
+      } else {
+        getContext().spawnAnonymous(DeviceGroupQuery.create(
+            devices(m.groupId(), m.deviceIds()), r.requestId(), r.replyTo(), settings.queryTimeout()));
+      }
+    } else if (m.request() instanceof RequestTemperatureStream r) {
+      if (m.deviceIds().isEmpty()) {
+        TemperatureStreamSummary summary = new TemperatureStreamSummary(r.requestId(), 0, Set.of(), Set.of());
+        r.replyTo().tell(new RespondTemperatureStream(r.requestId(), Source.<Device.RespondTemperature>empty()
+            .mapMaterializedValue(notUsed -> CompletableFuture.completedStage(summary))));
+      } else {
+        getContext().spawnAnonymous(DeviceGroupStreamQuery.create(
+            devices(m.groupId(), m.deviceIds()), r.requestId(), r.replyTo(), r.deadline()));
+      }
+    }
+    return this;
+  }
+
+  private Map<String, EntityRef<Device.Command>> devices(String groupId, Set<String> deviceIds) {
+    Map<String, EntityRef<Device.Command>> devices = new HashMap<>();
+    for (String deviceId : deviceIds) {
+      devices.put(deviceId, device(groupId, deviceId));
+    }
+    return devices;
+  }
+
+  private ClusterDeviceManager onDeviceGroupList(RequestDeviceGroupList r) {
+    r.replyTo().tell(new ReplyDeviceGroupList(r.requestId(), Set.copyOf(groupIds)));
+    return this;
+  }
+
+  private ClusterDeviceManager onForwardToDevice(ForwardToDevice f) {
+    getContext().ask(
+        ClusterDeviceGroup.Membership.class,
+        group(f.groupId()),
+        settings.queryTimeout(),
+        replyTo -> new ClusterDeviceGroup.CheckMember(f.deviceId(), groupIds.contains(f.groupId()), replyTo),
+        (membership, failure) -> new MembershipChecked(f, membership != null && membership.member()));
+    return this;
+  }
+
+  private ClusterDeviceManager onMembershipChecked(MembershipChecked checked) {
+    ForwardToDevice f = checked.forward();
+    if (checked.member()) {
+      device(f.groupId(), f.deviceId()).tell(f.command());
+    } else {
+      getContext().getLog().warn("Dropping message for unknown device {} in group {}", f.deviceId(), f.groupId());
+      f.replyUnknown();
+    }
+    return this;
+  }
+
+  private ClusterDeviceManager onRecordTemperatureBatch(RecordTemperatureBatch r) {
+    Map<String, List<TemperatureSample>> samplesByGroup = new HashMap<>();
+    for (TemperatureSample sample : r.samples()) {
+      samplesByGroup.computeIfAbsent(sample.groupId(), k -> new ArrayList<>()).add(sample);
+    }
+    if (samplesByGroup.isEmpty()) {
+      r.replyTo().tell(new TemperatureBatchRecorded(r.requestId(), 0, 0));
+      return this;
+    }
+    // the samples of a group that doesn't answer in time count as rejected
+    getContext().spawnAnonymous(Aggregator.create(
+        ClusterDeviceGroup.SamplesRecorded.class,
+        replyTo -> samplesByGroup.forEach(
+            (groupId, samples) -> group(groupId).tell(
+                new ClusterDeviceGroup.RecordSamples(samples, groupIds.contains(groupId), replyTo))),
+        samplesByGroup.size(),
+        r.replyTo(),
+        replies -> {
+          int accepted = 0;
+          for (ClusterDeviceGroup.SamplesRecorded reply : replies) {
+            accepted += reply.accepted();
+          }
+          return new TemperatureBatchRecorded(r.requestId(), accepted, r.samples().size() - accepted);
+        },
+        settings.batchTimeout()));
+    return this;
+  }
+
+  private <T> ClusterDeviceManager unsupported(String what, ActorRef<StatusReply<T>> replyTo) {
+    replyTo.tell(StatusReply.error(what + " are not supported in cluster mode"));
+    return this;
+  }
+
+  private ClusterDeviceManager onFleetTemperatures(RequestFleetTemperatures r) {
+    List<String> groupIds = new ArrayList<>(this.groupIds);
+    if (groupIds.isEmpty()) {
+      r.replyTo().tell(new RespondFleetTemperatures(r.requestId(), Map.of(), Map.of()));
+      return this;
+    }
+    // like DeviceManagerQuery, each group is asked with its index as request id, through this
+    // manager since the aggregator must not spawn the group queries in this actor's context
+    ActorRef<DeviceManager.Command> self = getContext().getSelf();
+    getContext().spawnAnonymous(Aggregator.create(
+        RespondAllTemperatures.class,
+        replyTo -> {
+          for (int i = 0; i < groupIds.size(); i++) {
+            self.tell(new RequestAllTemperatures(i, groupIds.get(i), replyTo));
+          }
+        },
+        groupIds.size(),
+        r.replyTo(),
+        replies -> {
+          Map<String, Map<String, TemperatureReading>> temperatures = new HashMap<>();
+          Map<String, GroupQueryStatus> status = new HashMap<>();
+          groupIds.forEach(groupId -> status.put(groupId, GroupQueryStatus.TIMED_OUT));
+          for (RespondAllTemperatures reply : replies) {
+            String groupId = groupIds.get((int) reply.requestId());
+            temperatures.put(groupId, reply.temperatures());
+            status.put(groupId, GroupQueryStatus.COMPLETED);
+          }
+          return new RespondFleetTemperatures(r.requestId(), temperatures, status);
+        },
+        settings.fleetQueryTimeout()));
+    return this;
+  }
+
+  @Override
+  public Receive<DeviceManager.Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(RequestTrackDevice.class, this::onTrackDevice)
+        .onMessage(DeviceIdentified.class, this::onDeviceIdentified)
+        .onMessage(RequestDeviceList.class, r -> askMembers(r.groupId(), r))
+        .onMessage(ForwardToDevice.class, this::onForwardToDevice)
+        .onMessage(MembershipChecked.class, this::onMembershipChecked)
+        .onMessage(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+        .onMessage(SubscribeTemperatureChanges.class, s -> unsupported("Temperature change subscriptions", s.replyTo()))
+        .onMessage(AddAlertRule.class, a -> unsupported("Alert rules", a.replyTo()))
+        .onMessage(RemoveAlertRule.class, r -> unsupported("Alert rules", r.replyTo()))
+        .onMessage(SubscribeAlerts.class, s -> unsupported("Alert rules", s.replyTo()))
+        .onMessage(RequestRollups.class, r -> unsupported("Rollups", r.replyTo()))
+        .onMessage(RequestAllTemperatures.class, r -> askMembers(r.groupId(), r))
+        .onMessage(RequestTemperatureStream.class, r -> askMembers(r.groupId(), r))
+        .onMessage(GroupMembers.class, this::onGroupMembers)
+        .onMessage(RequestFleetTemperatures.class, this::onFleetTemperatures)
+        .onMessage(RequestDeviceGroupList.class, this::onDeviceGroupList)
+        .onMessage(GroupsChanged.class, this::onGroupsChanged)
+        .onMessage(GroupsUpdated.class, this::onGroupsUpdated)
+        .onSignal(PostStop.class, signal -> onPostStop())
+        .build();
+  }
+
+  private ClusterDeviceManager onPostStop() {
+    getContext().getLog().info("ClusterDeviceManager stopped");
+    return this;
+  }
+}
@@ -7,40 +7,117 @@ import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.example.trace.EventTrace;
+import com.example.trace.TraceEvent;
 
+import java.time.Duration;
 import java.util.Optional;
 
 public class Device extends AbstractBehavior<Device.Command> {
 
-  public interface Command {}
+  public interface Command extends CborSerializable {}
 
   public record RecordTemperature(long requestId, double value,
                                   ActorRef<TemperatureRecorded> replyTo) implements Command {}
 
-  public record TemperatureRecorded(long requestId) {}
+  public record TemperatureRecorded(long requestId) implements CborSerializable {}
+
+  public record RecordTemperatureNoReply(long requestId, double value) implements Command {}
+
+  public record RequestRecordedWatermark(ActorRef<TemperatureRecorded> replyTo) implements Command {}
+
+  public record RecordTemperatures(double[] values) implements Command {}
 
   public record ReadTemperature(long requestId, ActorRef<RespondTemperature> replyTo) implements Command {}
 
-  public record RespondTemperature(long requestId, String deviceId, Optional<Double> value) {}
+  public record RespondTemperature(long requestId, String deviceId, Optional<Double> value)
+      implements CborSerializable {}
+
+  public record ReadTemperatureStats(long requestId, Duration window,
+                                     ActorRef<RespondTemperatureStats> replyTo) implements Command {}
+
+  public record RespondTemperatureStats(long requestId, String deviceId, TemperatureStats stats)
+      implements CborSerializable {}
+
+  public record TemperatureStats(int count, double min, double max, double average) {
+    public static final TemperatureStats EMPTY = new TemperatureStats(0, Double.NaN, Double.NaN, Double.NaN);
+  }
 
   enum Passivate implements Command {
     INSTANCE
   }
 
+  // answered with the actor the device runs in, for handing out a sharded device in DeviceRegistered
+  record Identify(ActorRef<Identity> replyTo) implements Command {}
+
+  record Identity(ActorRef<Command> device) implements CborSerializable {}
+
+  // sent by the group once the device reported itself idle: hand the state over and stop
+  enum Deactivate implements Command {
+    INSTANCE
+  }
+
+  // sent by the group when it starts or stops needing every recorded value
+  record PushReadings(boolean enabled) implements Command {}
+
+  private enum IdleTimeout implements Command {
+    INSTANCE
+  }
+
+  /**
+   * How a device that was spawned by a group talks back to it.
+   */
+  record GroupLink(ActorRef<DeviceGroup.Command> group, int slot, boolean pushReadings, Duration idleTimeout) {}
+
+  /**
+   * What is left of a device while it is passivated.
+   */
+  record State(long lastRecordedRequestId, boolean hasReading, double lastValue, long lastTimestamp) {
+    static final State EMPTY = new State(-1L, false, Double.NaN, 0L);
+  }
+
+  static final int DEFAULT_HISTORY_CAPACITY = 32;
+
   public static Behavior<Command> create(String groupId, String deviceId) {
-    return Behaviors.setup(context -> new Device(context, groupId, deviceId));
+    return create(groupId, deviceId, DEFAULT_HISTORY_CAPACITY);
+  }
+
+  public static Behavior<Command> create(String groupId, String deviceId, int historyCapacity) {
+    return Behaviors.setup(
+        context -> new Device(context, groupId, deviceId, historyCapacity, null, State.EMPTY));
+  }
+
+  static Behavior<Command> create(String groupId, String deviceId, int historyCapacity,
+                                  GroupLink link, State restored) {
+    return Behaviors.setup(
+        context -> new Device(context, groupId, deviceId, historyCapacity, link, restored));
   }
 
   private final String groupId;
   private final String deviceId;
 
-  @SuppressWarnings({"OptionalUsedAsFieldOrParameterType", "FieldMayBeFinal"})
-  private Optional<Double> lastTemperatureReading = Optional.empty();
+  private final ReadingHistory history;
+  private final GroupLink link;
+
+  private long lastRecordedRequestId;
+  private boolean pushReadings;
 
-  private Device(ActorContext<Command> context, String groupId, String deviceId) {
+  private Device(ActorContext<Command> context, String groupId, String deviceId, int historyCapacity,
+                 GroupLink link, State restored) {
     super(context);
     this.groupId = groupId;
     this.deviceId = deviceId;
+    this.history = new ReadingHistory(historyCapacity);
+    this.link = link;
+    this.pushReadings = link != null && link.pushReadings();
+
+    lastRecordedRequestId = restored.lastRecordedRequestId();
+    if (restored.hasReading()) {
+      history.record(restored.lastTimestamp(), restored.lastValue());
+    }
+    if (link != null && link.idleTimeout() != null) {
+      context.setReceiveTimeout(link.idleTimeout(), IdleTimeout.INSTANCE);
+    }
 
     context.getLog().info("Device actor {}-{} started", groupId, deviceId);
   }
@@ -49,24 +126,98 @@ public class Device extends AbstractBehavior<Device.Command> {
   public Receive<Command> createReceive() {
     return newReceiveBuilder()
         .onMessage(RecordTemperature.class, this::onRecordTemperature)
+        .onMessage(RecordTemperatureNoReply.class, this::onRecordTemperatureNoReply)
+        .onMessage(RequestRecordedWatermark.class, this::onRequestRecordedWatermark)
+        .onMessage(RecordTemperatures.class, this::onRecordTemperatures)
         .onMessage(ReadTemperature.class, this::onReadTemperature)
+        .onMessage(ReadTemperatureStats.class, this::onReadTemperatureStats)
+        .onMessage(PushReadings.class, this::onPushReadings)
+        .onMessage(Identify.class, this::onIdentify)
         .onMessage(Passivate.class, m -> Behaviors.stopped())
+        .onMessage(IdleTimeout.class, m -> onIdleTimeout())
+        .onMessage(Deactivate.class, m -> onDeactivate())
         .onSignal(PostStop.class, signal -> onPostStop())
         .build();
   }
 
   private Behavior<Command> onRecordTemperature(RecordTemperature r) {
-    getContext().getLog().info("Recorded temperature reading {} with {}", r.value, r.requestId);
-    lastTemperatureReading = Optional.of(r.value);
+    EventTrace.record(TraceEvent.DEVICE_TEMPERATURE_RECORDED, r.requestId, Double.doubleToRawLongBits(r.value));
+    record(System.currentTimeMillis(), r.value);
+    lastRecordedRequestId = r.requestId;
     r.replyTo.tell(new TemperatureRecorded(r.requestId));
     return this;
   }
 
+  private Behavior<Command> onRecordTemperatureNoReply(RecordTemperatureNoReply r) {
+    record(System.currentTimeMillis(), r.value);
+    lastRecordedRequestId = r.requestId;
+    return this;
+  }
+
+  // everything sent before this request has been recorded once the reply arrives
+  private Behavior<Command> onRequestRecordedWatermark(RequestRecordedWatermark r) {
+    r.replyTo.tell(new TemperatureRecorded(lastRecordedRequestId));
+    return this;
+  }
+
+  private Behavior<Command> onRecordTemperatures(RecordTemperatures r) {
+    long now = System.currentTimeMillis();
+    for (double value : r.values) {
+      history.record(now, value);
+    }
+    if (pushReadings && r.values.length > 0) {
+      link.group().tell(new DeviceGroup.DeviceTemperaturesChanged(link.slot(), deviceId, r.values, now));
+    }
+    return this;
+  }
+
+  private void record(long timestamp, double value) {
+    history.record(timestamp, value);
+    if (pushReadings) {
+      link.group().tell(new DeviceGroup.DeviceTemperatureChanged(link.slot(), deviceId, value, timestamp));
+    }
+  }
+
   private Behavior<Command> onReadTemperature(ReadTemperature r) {
-    r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, lastTemperatureReading));
+    Optional<Double> value = history.isEmpty() ? Optional.empty() : Optional.of(history.lastValue());
+    r.replyTo.tell(new RespondTemperature(r.requestId, deviceId, value));
+    return this;
+  }
+
+  private Behavior<Command> onReadTemperatureStats(ReadTemperatureStats r) {
+    long since = System.currentTimeMillis() - r.window.toMillis();
+    r.replyTo.tell(new RespondTemperatureStats(r.requestId, deviceId, history.stats(since)));
     return this;
   }
 
+  private Behavior<Command> onPushReadings(PushReadings p) {
+    pushReadings = link != null && p.enabled;
+    return this;
+  }
+
+  private Behavior<Command> onIdentify(Identify i) {
+    i.replyTo.tell(new Identity(getContext().getSelf()));
+    return this;
+  }
+
+  private Behavior<Command> onIdleTimeout() {
+    getContext().cancelReceiveTimeout();
+    link.group().tell(new DeviceGroup.DeviceIdle(link.slot(), deviceId, state()));
+    return this;
+  }
+
+  private Behavior<Command> onDeactivate() {
+    link.group().tell(new DeviceGroup.DeviceDeactivated(link.slot(), deviceId, state()));
+    return Behaviors.stopped();
+  }
+
+  private State state() {
+    if (history.isEmpty()) {
+      return new State(lastRecordedRequestId, false, Double.NaN, 0L);
+    }
+    return new State(lastRecordedRequestId, true, history.lastValue(), history.lastTimestamp());
+  }
+
   private Device onPostStop() {
     getContext().getLog().info("Device actor {}-{} stopped", groupId, deviceId);
     return this;
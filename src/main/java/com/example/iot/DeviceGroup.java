@@ -2,16 +2,29 @@ package com.example.iot;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.pattern.StatusReply;
 import com.example.iot.DeviceManager.*;
+import com.example.metrics.ActorMetrics;
+import com.example.trace.EventTrace;
+import com.example.trace.TraceEvent;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 
@@ -20,30 +33,116 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
   private record DeviceTerminated(ActorRef<Device.Command> device,
                                   String groupId, String deviceId) implements Command {}
 
+  record DeviceTemperatureChanged(int slot, String deviceId, double value, long timestamp) implements Command {}
+
+  // the values of a batch in the order they were recorded, all at the same time
+  record DeviceTemperaturesChanged(int slot, String deviceId, double[] values, long timestamp) implements Command {}
+
+  record DeviceIdle(int slot, String deviceId, Device.State state) implements Command {}
+
+  record DeviceDeactivated(int slot, String deviceId, Device.State state) implements Command {}
+
+  private enum FlushJournal implements Command {INSTANCE}
+
+  private record SubscriberTerminated(ActorRef<TemperatureEvent> subscriber) implements Command {}
+
+  private record AlertSubscriberTerminated(ActorRef<Alert> subscriber) implements Command {}
+
+  /**
+   * A device that reported itself idle and is handing its state over. Messages for it are held back
+   * until it has both handed over its state and terminated, then it is re-spawned if they need it.
+   */
+  private static final class Deactivation {
+    final ActorRef<Device.Command> device;
+    final List<Device.Command> buffered = new ArrayList<>();
+    final List<ActorRef<DeviceRegistered>> registrations = new ArrayList<>();
+    boolean handedOver;
+    boolean terminated;
+
+    Deactivation(ActorRef<Device.Command> device) {
+      this.device = device;
+    }
+  }
+
   public static Behavior<Command> create(String groupId) {
-    return Behaviors.setup(context -> new DeviceGroup(context, groupId));
+    return Behaviors.setup(
+        context -> create(groupId, IotSettings.create(context.getSystem().settings().config())));
   }
 
+  public static Behavior<Command> create(String groupId, IotSettings settings) {
+    return Behaviors.setup(
+        context -> Behaviors.withTimers(timers -> new DeviceGroup(context, timers, groupId, settings)));
+  }
+
+  private static final Props DEVICE_PROPS =
+      ActorMetrics.mailbox("device").withDispatcherFromConfig("iot.dispatchers.device");
+  private static final DispatcherSelector QUERY_DISPATCHER = DispatcherSelector.fromConfig("iot.dispatchers.query");
+
   private final String groupId;
+  private final IotSettings settings;
+  // running device actors, passivated devices only live in the table
   private final Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+  private final Map<String, Deactivation> deactivations = new HashMap<>();
+  private final DeviceTable table = new DeviceTable();
+  // sorted ids of the running devices with their actors at the same index, shared by the queries
+  // and rebuilt only after the running devices changed
+  private String[] activeIds;
+  private ActorRef<Device.Command>[] activeDevices;
+  // only used when persistence is enabled, recovers the table when the group starts
+  private DeviceJournal journal;
+  private final Set<ActorRef<TemperatureEvent>> subscribers = new HashSet<>();
+  private final AlertRules alertRules = new AlertRules();
+  private final Set<ActorRef<Alert>> alertSubscribers = new HashSet<>();
+  // only used when rollups are enabled
+  private final RollupStore rollups;
+  // whether the rollups already ran out of direct memory, which is only logged once
+  private boolean rollupsFull;
+  private final AlertRules.Sink alertSink = this::publishAlert;
+  // whether devices currently push every recorded value
+  private boolean pushing;
 
-  private DeviceGroup(ActorContext<Command> context, String groupId) {
+  // only used when the snapshot mode is enabled
+  private Map<String, TemperatureReading> cachedReadings;
+  private long cachedAt;
+  private boolean snapshotChanged;
+
+  private DeviceGroup(
+      ActorContext<Command> context, TimerScheduler<Command> timers, String groupId, IotSettings settings) {
     super(context);
     this.groupId = groupId;
-    context.getLog().info("DeviceGroup {} started", groupId);
+    this.settings = settings;
+    this.rollups = settings.rollupsEnabled()
+        ? new RollupStore(settings.rollupMinuteRetention(), settings.rollupHourRetention())
+        : null;
+    this.pushing = pushReadings();
+    if (settings.persistenceEnabled()) {
+      // recovered devices start out passivated and are spawned by the first message for them
+      journal = DeviceJournal.open(settings.persistenceDirectory(), groupId, settings.persistenceSegmentSize(),
+          table, context.getSystem().dispatchers().lookup(DispatcherSelector.blocking()));
+      timers.startTimerWithFixedDelay(FlushJournal.INSTANCE, settings.persistenceFlushInterval());
+    }
+    context.getLog().info("DeviceGroup {} started with {} recovered devices", groupId, table.size());
   }
 
   private DeviceGroup onTrackDevice(RequestTrackDevice trackMsg) {
     if (this.groupId.equals(trackMsg.groupId())) {
-      ActorRef<Device.Command> deviceActor = deviceIdToActor.get(trackMsg.deviceId());
+      String deviceId = trackMsg.deviceId();
+      ActorRef<Device.Command> deviceActor = deviceIdToActor.get(deviceId);
       if (deviceActor == null) {
-        getContext().getLog().info("Creating device actor for {}", trackMsg.deviceId());
-        deviceActor = getContext()
-            .spawn(Device.create(groupId, trackMsg.deviceId()), "device-" + trackMsg.deviceId());
-
-        getContext()
-            .watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, trackMsg.deviceId()));
-        deviceIdToActor.put(trackMsg.deviceId(), deviceActor);
+        Deactivation deactivation = deactivations.get(deviceId);
+        if (deactivation != null) {
+          deactivation.registrations.add(trackMsg.replyTo());
+          return this;
+        }
+        if (!table.contains(deviceId)) {
+          EventTrace.record(TraceEvent.DEVICE_TRACKED, groupId.hashCode(), deviceId.hashCode());
+          table.add(deviceId);
+          cachedReadings = null;
+          if (journal != null) {
+            journal.tracked(deviceId);
+          }
+        }
+        deviceActor = spawnDevice(deviceId);
       }
       trackMsg.replyTo().tell(new DeviceRegistered(deviceActor));
     } else {
@@ -57,27 +156,347 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
     return this;
   }
 
+  private ActorRef<Device.Command> spawnDevice(String deviceId) {
+    int slot = table.slotOf(deviceId);
+    Duration idleTimeout = settings.passivationEnabled() ? settings.passivationIdleTimeout() : null;
+    Device.GroupLink link =
+        new Device.GroupLink(getContext().getSelf(), slot, pushing, idleTimeout);
+    ActorRef<Device.Command> deviceActor = getContext().spawn(
+        ActorMetrics.instrument("device",
+            Device.create(groupId, deviceId, Device.DEFAULT_HISTORY_CAPACITY, link, table.state(slot))),
+        "device-" + deviceId,
+        DEVICE_PROPS);
+    getContext().watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, deviceId));
+    deviceIdToActor.put(deviceId, deviceActor);
+    activeIds = null;
+    return deviceActor;
+  }
+
+  private boolean pushReadings() {
+    return settings.snapshotEnabled() || settings.persistenceEnabled() || settings.rollupsEnabled()
+        || !subscribers.isEmpty() || !alertRules.isEmpty();
+  }
+
+  private void updatePushing() {
+    boolean push = pushReadings();
+    if (push != pushing) {
+      pushing = push;
+      deviceIdToActor.values().forEach(device -> device.tell(new Device.PushReadings(push)));
+    }
+  }
+
+  private DeviceGroup onSubscribeTemperatureChanges(SubscribeTemperatureChanges s) {
+    if (subscribers.add(s.subscriber())) {
+      getContext().watchWith(s.subscriber(), new SubscriberTerminated(s.subscriber()));
+      updatePushing();
+    }
+    s.replyTo().tell(StatusReply.ack());
+    return this;
+  }
+
+  private DeviceGroup onSubscriberTerminated(SubscriberTerminated t) {
+    subscribers.remove(t.subscriber());
+    updatePushing();
+    return this;
+  }
+
+  private DeviceGroup onAddAlertRule(AddAlertRule a) {
+    alertRules.add(a.rule());
+    updatePushing();
+    a.replyTo().tell(StatusReply.ack());
+    return this;
+  }
+
+  private DeviceGroup onRemoveAlertRule(RemoveAlertRule r) {
+    if (alertRules.remove(r.ruleId())) {
+      updatePushing();
+    }
+    r.replyTo().tell(StatusReply.ack());
+    return this;
+  }
+
+  private DeviceGroup onSubscribeAlerts(SubscribeAlerts s) {
+    if (alertSubscribers.add(s.subscriber())) {
+      getContext().watchWith(s.subscriber(), new AlertSubscriberTerminated(s.subscriber()));
+    }
+    s.replyTo().tell(StatusReply.ack());
+    return this;
+  }
+
+  private DeviceGroup onAlertSubscriberTerminated(AlertSubscriberTerminated t) {
+    alertSubscribers.remove(t.subscriber());
+    return this;
+  }
+
+  private DeviceGroup onRollups(RequestRollups r) {
+    Map<String, Rollup> result = new HashMap<>();
+    if (rollups != null) {
+      Set<String> deviceIds = r.deviceIds().isEmpty() ? table.deviceIds() : r.deviceIds();
+      for (String deviceId : deviceIds) {
+        int slot = table.slotOf(deviceId);
+        if (slot >= 0) {
+          result.put(deviceId, rollups.query(slot, r.resolution(), r.from(), r.to()));
+        }
+      }
+    }
+    r.replyTo().tell(StatusReply.success(new RespondRollups(r.requestId(), result)));
+    return this;
+  }
+
+  private void publishAlert(String deviceId, String ruleId, boolean raised, double value, long timestamp) {
+    if (!alertSubscribers.isEmpty()) {
+      Alert alert = new Alert(groupId, deviceId, ruleId, raised, value, timestamp);
+      alertSubscribers.forEach(subscriber -> subscriber.tell(alert));
+    }
+  }
+
+  /**
+   * Delivers a command to a tracked device, re-spawning it if it is passivated.
+   */
+  private boolean deliver(String deviceId, Device.Command command) {
+    ActorRef<Device.Command> deviceActor = deviceIdToActor.get(deviceId);
+    if (deviceActor != null) {
+      deviceActor.tell(command);
+      return true;
+    }
+    Deactivation deactivation = deactivations.get(deviceId);
+    if (deactivation != null) {
+      deactivation.buffered.add(command);
+      return true;
+    }
+    if (table.contains(deviceId)) {
+      spawnDevice(deviceId).tell(command);
+      return true;
+    }
+    return false;
+  }
+
+  private DeviceGroup onForwardToDevice(ForwardToDevice f) {
+    if (!deliver(f.deviceId(), f.command())) {
+      getContext().getLog().warn("Dropping message for unknown device {} in group {}", f.deviceId(), groupId);
+      f.replyUnknown();
+    }
+    return this;
+  }
+
+  private DeviceGroup onDeviceTemperatureChanged(DeviceTemperatureChanged changed) {
+    if (recordLatest(changed.slot(), changed.deviceId(), changed.value(), changed.timestamp())) {
+      publish(changed.slot(), changed.deviceId(), changed.value(), changed.timestamp());
+    }
+    return this;
+  }
+
+  private DeviceGroup onDeviceTemperaturesChanged(DeviceTemperaturesChanged changed) {
+    double[] values = changed.values();
+    // the table and the journal only keep the latest value, everything else sees every value of the batch
+    if (recordLatest(changed.slot(), changed.deviceId(), values[values.length - 1], changed.timestamp())) {
+      for (double value : values) {
+        publish(changed.slot(), changed.deviceId(), value, changed.timestamp());
+      }
+    }
+    return this;
+  }
+
+  private boolean recordLatest(int slot, String deviceId, double value, long timestamp) {
+    if (!table.update(slot, deviceId, value, timestamp)) {
+      return false;
+    }
+    snapshotChanged = true;
+    if (journal != null) {
+      journal.recorded(deviceId, table.state(slot));
+    }
+    return true;
+  }
+
+  private void publish(int slot, String deviceId, double value, long timestamp) {
+    if (!subscribers.isEmpty()) {
+      TemperatureChanged published = new TemperatureChanged(groupId, deviceId, value, timestamp);
+      subscribers.forEach(subscriber -> subscriber.tell(published));
+    }
+    if (rollups != null && !rollups.record(slot, value, timestamp) && !rollupsFull) {
+      rollupsFull = true;
+      getContext().getLog().warn("Out of direct memory for the rollups of group {}, dropping values", groupId);
+    }
+    if (!alertRules.isEmpty()) {
+      alertRules.evaluate(slot, deviceId, value, timestamp, alertSink);
+    }
+  }
+
+  private DeviceGroup onDeviceIdle(DeviceIdle idle) {
+    ActorRef<Device.Command> deviceActor = deviceIdToActor.get(idle.deviceId());
+    if (deviceActor != null && table.owns(idle.slot(), idle.deviceId())) {
+      getContext().getLog().debug("Passivating idle device {}", idle.deviceId());
+      deviceIdToActor.remove(idle.deviceId());
+      activeIds = null;
+      table.store(idle.slot(), idle.state());
+      deactivations.put(idle.deviceId(), new Deactivation(deviceActor));
+      deviceActor.tell(Device.Deactivate.INSTANCE);
+    }
+    return this;
+  }
+
+  private DeviceGroup onDeviceDeactivated(DeviceDeactivated deactivated) {
+    Deactivation deactivation = deactivations.get(deactivated.deviceId());
+    if (deactivation != null && table.owns(deactivated.slot(), deactivated.deviceId())) {
+      table.store(deactivated.slot(), deactivated.state());
+      snapshotChanged = true;
+      if (journal != null) {
+        journal.recorded(deactivated.deviceId(), deactivated.state());
+      }
+      deactivation.handedOver = true;
+      completeDeactivation(deactivated.deviceId(), deactivation);
+    }
+    return this;
+  }
+
+  private void completeDeactivation(String deviceId, Deactivation deactivation) {
+    // the name of the old actor is only free again once it has terminated
+    if (!deactivation.handedOver || !deactivation.terminated) {
+      return;
+    }
+    deactivations.remove(deviceId);
+    if (!deactivation.buffered.isEmpty() || !deactivation.registrations.isEmpty()) {
+      ActorRef<Device.Command> deviceActor = spawnDevice(deviceId);
+      deactivation.buffered.forEach(deviceActor::tell);
+      deactivation.registrations.forEach(replyTo -> replyTo.tell(new DeviceRegistered(deviceActor)));
+    }
+  }
+
   private DeviceGroup onDeviceList(RequestDeviceList r) {
-    r.replyTo().tell(new ReplyDeviceList(r.requestId(), deviceIdToActor.keySet()));
+    r.replyTo().tell(new ReplyDeviceList(r.requestId(), table.deviceIds()));
     return this;
   }
 
   private Behavior<Command> onTerminated(DeviceTerminated t) {
+    Deactivation deactivation = deactivations.get(t.deviceId());
+    if (deactivation != null && deactivation.device.equals(t.device())) {
+      deactivation.terminated = true;
+      completeDeactivation(t.deviceId(), deactivation);
+      return this;
+    }
+    if (!t.device().equals(deviceIdToActor.get(t.deviceId()))) {
+      return this;
+    }
+
     getContext().getLog().info("Device actor for {} has been terminated", t.deviceId());
     deviceIdToActor.remove(t.deviceId());
-    if (deviceIdToActor.isEmpty()) {
+    activeIds = null;
+    int slot = table.slotOf(t.deviceId());
+    if (slot >= 0) {
+      alertRules.clear(slot);
+      if (rollups != null) {
+        rollups.clear(slot);
+      }
+    }
+    table.remove(t.deviceId());
+    cachedReadings = null;
+    if (journal != null) {
+      journal.removed(t.deviceId());
+    }
+    if (table.isEmpty()) {
       getContext().getLog().info("DeviceGroup {} has been terminated", groupId);
+      if (journal != null) {
+        journal.delete();
+        journal = null;
+      }
       return Behaviors.stopped();
     }
     return this;
   }
 
+  private DeviceGroup onRecordGroupTemperatures(RecordGroupTemperatures r) {
+    // first pass sizes one primitive array per device, second pass fills them in arrival order
+    Map<String, int[]> remaining = new HashMap<>();
+    int rejected = 0;
+    for (TemperatureSample sample : r.samples()) {
+      if (table.contains(sample.deviceId())) {
+        remaining.computeIfAbsent(sample.deviceId(), k -> new int[1])[0]++;
+      } else {
+        rejected++;
+      }
+    }
+
+    Map<String, double[]> valuesByDevice = new HashMap<>();
+    for (TemperatureSample sample : r.samples()) {
+      int[] left = remaining.get(sample.deviceId());
+      if (left != null) {
+        double[] values = valuesByDevice.computeIfAbsent(sample.deviceId(), k -> new double[left[0]]);
+        values[values.length - left[0]--] = sample.value();
+      }
+    }
+    for (Map.Entry<String, double[]> entry : valuesByDevice.entrySet()) {
+      deliver(entry.getKey(), new Device.RecordTemperatures(entry.getValue()));
+    }
+
+    r.replyTo().tell(new GroupTemperaturesRecorded(
+        r.requestId(), groupId, r.samples().size() - rejected, rejected));
+    return this;
+  }
+
   private DeviceGroup onAllTemperatures(RequestAllTemperatures r) {
+    if (settings.snapshotEnabled()) {
+      r.replyTo().tell(new RespondAllTemperatures(r.requestId(), snapshotReadings()));
+      return this;
+    }
+    Map<String, TemperatureReading> passivated = passivatedReadings();
+    if (deviceIdToActor.isEmpty()) {
+      r.replyTo().tell(new RespondAllTemperatures(r.requestId(), passivated));
+      return this;
+    }
+    indexActiveDevices();
     getContext().spawnAnonymous(DeviceGroupQuery.create(
-        Map.copyOf(this.deviceIdToActor), r.requestId(), r.replyTo(), Duration.ofSeconds(3)));
+        activeIds, activeDevices, passivated, r.requestId(), r.replyTo(), settings.queryTimeout()),
+        QUERY_DISPATCHER);
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void indexActiveDevices() {
+    if (activeIds != null) {
+      return;
+    }
+    String[] ids = deviceIdToActor.keySet().toArray(new String[0]);
+    Arrays.sort(ids);
+    ActorRef<Device.Command>[] devices = new ActorRef[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      devices[i] = deviceIdToActor.get(ids[i]);
+    }
+    activeIds = ids;
+    activeDevices = devices;
+  }
+
+  private DeviceGroup onTemperatureStream(RequestTemperatureStream r) {
+    getContext().spawnAnonymous(DeviceGroupStreamQuery.create(
+        Map.copyOf(this.deviceIdToActor), passivatedReadings(), r.requestId(), r.replyTo(), r.deadline()),
+        QUERY_DISPATCHER);
     return this;
   }
 
+  // passivated devices are answered from the table instead of being woken up
+  private Map<String, TemperatureReading> passivatedReadings() {
+    if (deviceIdToActor.size() == table.size()) {
+      return Map.of();
+    }
+    Map<String, TemperatureReading> readings = new HashMap<>();
+    for (String deviceId : table.deviceIds()) {
+      if (!deviceIdToActor.containsKey(deviceId)) {
+        readings.put(deviceId, table.reading(table.slotOf(deviceId)));
+      }
+    }
+    return readings;
+  }
+
+  private Map<String, TemperatureReading> snapshotReadings() {
+    long now = System.nanoTime();
+    if (cachedReadings == null
+        || (snapshotChanged && now - cachedAt >= settings.snapshotMaxStaleness().toNanos())) {
+      cachedReadings = Collections.unmodifiableMap(table.toReadings());
+      cachedAt = now;
+      snapshotChanged = false;
+    }
+    return cachedReadings;
+  }
+
   @Override
   public Receive<Command> createReceive() {
     return newReceiveBuilder()
@@ -86,17 +505,59 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
             RequestDeviceList.class,
             r -> r.groupId().equals(groupId),
             this::onDeviceList)
+        .onMessage(
+            RecordGroupTemperatures.class,
+            r -> r.groupId().equals(groupId),
+            this::onRecordGroupTemperatures)
+        .onMessage(
+            ForwardToDevice.class,
+            f -> f.groupId().equals(groupId),
+            this::onForwardToDevice)
         .onMessage(DeviceTerminated.class, this::onTerminated)
+        .onMessage(DeviceTemperatureChanged.class, this::onDeviceTemperatureChanged)
+        .onMessage(DeviceTemperaturesChanged.class, this::onDeviceTemperaturesChanged)
+        .onMessage(DeviceIdle.class, this::onDeviceIdle)
+        .onMessage(DeviceDeactivated.class, this::onDeviceDeactivated)
+        .onMessage(FlushJournal.class, f -> onFlushJournal())
+        .onMessage(
+            SubscribeTemperatureChanges.class,
+            s -> s.groupId().equals(groupId),
+            this::onSubscribeTemperatureChanges)
+        .onMessage(SubscriberTerminated.class, this::onSubscriberTerminated)
+        .onMessage(AddAlertRule.class, a -> a.groupId().equals(groupId), this::onAddAlertRule)
+        .onMessage(RemoveAlertRule.class, r -> r.groupId().equals(groupId), this::onRemoveAlertRule)
+        .onMessage(SubscribeAlerts.class, s -> s.groupId().equals(groupId), this::onSubscribeAlerts)
+        .onMessage(AlertSubscriberTerminated.class, this::onAlertSubscriberTerminated)
         .onMessage(
             RequestAllTemperatures.class,
             r -> r.groupId().equals(groupId),
             this::onAllTemperatures)
+        .onMessage(
+            RequestRollups.class,
+            r -> r.groupId().equals(groupId),
+            this::onRollups)
+        .onMessage(
+            RequestTemperatureStream.class,
+            r -> r.groupId().equals(groupId),
+            this::onTemperatureStream)
         .onSignal(PostStop.class, signal -> onPostStop())
         .build();
   }
 
+  private DeviceGroup onFlushJournal() {
+    journal.flush();
+    return this;
+  }
+
   private DeviceGroup onPostStop() {
+    if (journal != null) {
+      journal.close();
+    }
+    if (!subscribers.isEmpty()) {
+      SubscriptionEnded ended = new SubscriptionEnded(groupId);
+      subscribers.forEach(subscriber -> subscriber.tell(ended));
+    }
     getContext().getLog().info("DeviceGroup {} stopped", groupId);
     return this;
   }
-}
\ No newline at end of file
+}
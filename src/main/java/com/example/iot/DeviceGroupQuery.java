@@ -2,15 +2,21 @@ package com.example.iot;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.RecipientRef;
 import akka.actor.typed.javadsl.*;
 import com.example.iot.DeviceManager.*;
 
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * Asks every device of a group for its temperature and answers with all of them at once. Devices that are
+ * actors are watched and reported as not available if they stop, others, like sharded entities, are reported
+ * as timed out if they don't answer in time.
+ */
 public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command> {
 
   public interface Command {}
@@ -19,28 +25,67 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 
   record WrappedRespondTemperature(Device.RespondTemperature response) implements Command {}
 
-  private record DeviceTerminated(String deviceId) implements Command {}
+  private record DeviceTerminated(int index) implements Command {}
 
   public static Behavior<Command> create(
-      Map<String, ActorRef<Device.Command>> deviceIdToActor,
+      Map<String, ? extends RecipientRef<Device.Command>> deviceIdToActor,
+      long requestId,
+      ActorRef<DeviceManager.RespondAllTemperatures> requester,
+      Duration timeout) {
+    return create(deviceIdToActor, Map.of(), requestId, requester, timeout);
+  }
+
+  /**
+   * Also answers with the already known readings, e.g. of passivated devices, without asking them.
+   */
+  public static Behavior<Command> create(
+      Map<String, ? extends RecipientRef<Device.Command>> deviceIdToActor,
+      Map<String, TemperatureReading> knownReadings,
+      long requestId,
+      ActorRef<DeviceManager.RespondAllTemperatures> requester,
+      Duration timeout) {
+    String[] deviceIds = deviceIdToActor.keySet().toArray(new String[0]);
+    Arrays.sort(deviceIds);
+    @SuppressWarnings("unchecked")
+    RecipientRef<Device.Command>[] devices = new RecipientRef[deviceIds.length];
+    for (int i = 0; i < deviceIds.length; i++) {
+      devices[i] = deviceIdToActor.get(deviceIds[i]);
+    }
+    return create(deviceIds, devices, knownReadings, requestId, requester, timeout);
+  }
+
+  /**
+   * Takes the devices as sorted ids with the device of every id at the same index, which a group can
+   * keep around between queries. The arrays are not modified.
+   */
+  public static Behavior<Command> create(
+      String[] deviceIds,
+      RecipientRef<Device.Command>[] devices,
+      Map<String, TemperatureReading> knownReadings,
       long requestId,
       ActorRef<DeviceManager.RespondAllTemperatures> requester,
       Duration timeout) {
     return Behaviors.setup(
         context -> Behaviors.withTimers(
-            timers -> new DeviceGroupQuery(deviceIdToActor, requestId, requester, timeout, context, timers)
+            timers -> new DeviceGroupQuery(
+                deviceIds, devices, knownReadings, requestId, requester, timeout, context, timers)
         )
     );
   }
 
   private final long requestId;
   private final ActorRef<DeviceManager.RespondAllTemperatures> requester;
+  private final Map<String, TemperatureReading> knownReadings;
 
-  private final Map<String, TemperatureReading> repliesSoFar = new HashMap<>();
-  private final Set<String> stillWaiting;
+  // replies are looked up by their device id in the sorted ids, no per-device collections needed
+  private final String[] deviceIds;
+  private final TemperatureReading[] readings;
+  private final BitSet stillWaiting;
 
   private DeviceGroupQuery(
-      Map<String, ActorRef<Device.Command>> deviceIdToActor,
+      String[] deviceIds,
+      RecipientRef<Device.Command>[] devices,
+      Map<String, TemperatureReading> knownReadings,
       long requestId,
       ActorRef<DeviceManager.RespondAllTemperatures> requester,
       Duration timeout,
@@ -49,17 +94,24 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
     super(context);
     this.requestId = requestId;
     this.requester = requester;
+    this.knownReadings = knownReadings;
+    this.deviceIds = deviceIds;
+    this.readings = new TemperatureReading[deviceIds.length];
+    this.stillWaiting = new BitSet(deviceIds.length);
+    stillWaiting.set(0, deviceIds.length);
 
     timers.startSingleTimer(CollectionTimeout.INSTANCE, timeout);
 
     ActorRef<Device.RespondTemperature> respondTemperatureAdapter =
         context.messageAdapter(Device.RespondTemperature.class, WrappedRespondTemperature::new);
 
-    for (Map.Entry<String, ActorRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
-      context.watchWith(entry.getValue(), new DeviceTerminated(entry.getKey()));
-      entry.getValue().tell(new Device.ReadTemperature(0L, respondTemperatureAdapter));
+    Device.ReadTemperature read = new Device.ReadTemperature(0L, respondTemperatureAdapter);
+    for (int i = 0; i < devices.length; i++) {
+      if (devices[i] instanceof ActorRef<?> device) {
+        context.watchWith(device, new DeviceTerminated(i));
+      }
+      devices[i].tell(read);
     }
-    stillWaiting = new HashSet<>(deviceIdToActor.keySet());
   }
 
   @Override
@@ -72,29 +124,28 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
   }
 
   private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
-    TemperatureReading reading =
-        r.response.value()
-            .map(v -> (TemperatureReading) new Temperature(v))
-            .orElse(TemperatureNotAvailable.INSTANCE);
-
-    String deviceId = r.response.deviceId();
-    repliesSoFar.put(deviceId, reading);
-    stillWaiting.remove(deviceId);
-
+    int index = Arrays.binarySearch(deviceIds, r.response.deviceId());
+    if (index >= 0) {
+      readings[index] =
+          r.response.value()
+              .map(v -> (TemperatureReading) new Temperature(v))
+              .orElse(TemperatureNotAvailable.INSTANCE);
+      stillWaiting.clear(index);
+    }
     return respondWhenAllCollected();
   }
 
   private Behavior<Command> onDeviceTerminated(DeviceTerminated terminated) {
-    if (stillWaiting.contains(terminated.deviceId())) {
-      repliesSoFar.put(terminated.deviceId(), DeviceNotAvailable.INSTANCE);
-      stillWaiting.remove(terminated.deviceId());
+    if (stillWaiting.get(terminated.index())) {
+      readings[terminated.index()] = DeviceNotAvailable.INSTANCE;
+      stillWaiting.clear(terminated.index());
     }
     return respondWhenAllCollected();
   }
 
   private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
-    for (String deviceId : stillWaiting) {
-      repliesSoFar.put(deviceId, DeviceTimedOut.INSTANCE);
+    for (int i = stillWaiting.nextSetBit(0); i >= 0; i = stillWaiting.nextSetBit(i + 1)) {
+      readings[i] = DeviceTimedOut.INSTANCE;
     }
     stillWaiting.clear();
     return respondWhenAllCollected();
@@ -102,7 +153,13 @@ public class DeviceGroupQuery extends AbstractBehavior<DeviceGroupQuery.Command>
 
   private Behavior<Command> respondWhenAllCollected() {
     if (stillWaiting.isEmpty()) {
-      requester.tell(new DeviceManager.RespondAllTemperatures(requestId, repliesSoFar));
+      Map<String, TemperatureReading> temperatures =
+          new HashMap<>((knownReadings.size() + deviceIds.length) * 4 / 3 + 1);
+      temperatures.putAll(knownReadings);
+      for (int i = 0; i < deviceIds.length; i++) {
+        temperatures.put(deviceIds[i], readings[i]);
+      }
+      requester.tell(new DeviceManager.RespondAllTemperatures(requestId, temperatures));
       return Behaviors.stopped();
     } else {
       return this;
@@ -0,0 +1,228 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.RecipientRef;
+import akka.actor.typed.javadsl.*;
+import akka.stream.CompletionStrategy;
+import akka.stream.javadsl.Source;
+import akka.stream.typed.javadsl.ActorSource;
+import com.example.iot.DeviceManager.*;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Like {@link DeviceGroupQuery}, but hands out every reading as soon as it arrives through an
+ * Akka Streams source instead of waiting for the slowest device.
+ * <p>
+ * Readings are pushed into the stream one at a time and only after the stream acknowledged the
+ * previous one, so a slow consumer backpressures into this actor's buffer, which is bounded by
+ * the number of devices. Like there, only devices that are actors are watched. The source has to be
+ * run before twice the deadline has passed. If the stream ends early, because it was cancelled or
+ * failed, the query completes the summary with what it collected so far and stops.
+ */
+public class DeviceGroupStreamQuery extends AbstractBehavior<DeviceGroupStreamQuery.Command> {
+
+  public interface Command {}
+
+  private enum CollectionTimeout implements Command {INSTANCE}
+
+  private enum SubscriptionTimeout implements Command {INSTANCE}
+
+  private enum StreamAck implements Command {INSTANCE}
+
+  private record StreamStarted(ActorRef<StreamElement> stream) implements Command {}
+
+  private enum StreamTerminated implements Command {INSTANCE}
+
+  record WrappedRespondTemperature(Device.RespondTemperature response) implements Command {}
+
+  private record DeviceTerminated(String deviceId) implements Command {}
+
+  private interface StreamElement {}
+
+  private record Reading(Device.RespondTemperature response) implements StreamElement {}
+
+  private enum EndOfStream implements StreamElement {INSTANCE}
+
+  public static Behavior<Command> create(
+      Map<String, ? extends RecipientRef<Device.Command>> deviceIdToActor,
+      long requestId,
+      ActorRef<RespondTemperatureStream> requester,
+      Duration deadline) {
+    return create(deviceIdToActor, Map.of(), requestId, requester, deadline);
+  }
+
+  /**
+   * Also emits the already known readings, e.g. of passivated devices, without asking them.
+   */
+  public static Behavior<Command> create(
+      Map<String, ? extends RecipientRef<Device.Command>> deviceIdToActor,
+      Map<String, TemperatureReading> knownReadings,
+      long requestId,
+      ActorRef<RespondTemperatureStream> requester,
+      Duration deadline) {
+    return Behaviors.setup(
+        context -> Behaviors.withTimers(
+            timers -> new DeviceGroupStreamQuery(
+                deviceIdToActor, knownReadings, requestId, requester, deadline, context, timers)
+        )
+    );
+  }
+
+  private final long requestId;
+  private final TimerScheduler<Command> timers;
+  private final CompletableFuture<TemperatureStreamSummary> summary = new CompletableFuture<>();
+
+  private final Set<String> stillWaiting;
+  private final Set<String> timedOut = new HashSet<>();
+  private final Set<String> terminated = new HashSet<>();
+  private final Deque<Device.RespondTemperature> buffer = new ArrayDeque<>();
+  private int responded;
+
+  private ActorRef<StreamElement> stream;
+  private boolean streamReady;
+
+  private DeviceGroupStreamQuery(
+      Map<String, ? extends RecipientRef<Device.Command>> deviceIdToActor,
+      Map<String, TemperatureReading> knownReadings,
+      long requestId,
+      ActorRef<RespondTemperatureStream> requester,
+      Duration deadline,
+      ActorContext<Command> context,
+      TimerScheduler<Command> timers) {
+    super(context);
+    this.requestId = requestId;
+    this.timers = timers;
+
+    for (Map.Entry<String, TemperatureReading> known : knownReadings.entrySet()) {
+      Optional<Double> value = known.getValue() instanceof Temperature temperature
+          ? Optional.of(temperature.value())
+          : Optional.empty();
+      buffer.add(new Device.RespondTemperature(requestId, known.getKey(), value));
+      responded++;
+    }
+
+    timers.startSingleTimer(CollectionTimeout.INSTANCE, deadline);
+    timers.startSingleTimer(SubscriptionTimeout.INSTANCE, deadline.multipliedBy(2));
+
+    ActorRef<Device.RespondTemperature> respondTemperatureAdapter =
+        context.messageAdapter(Device.RespondTemperature.class, WrappedRespondTemperature::new);
+
+    for (Map.Entry<String, ? extends RecipientRef<Device.Command>> entry : deviceIdToActor.entrySet()) {
+      if (entry.getValue() instanceof ActorRef<?> device) {
+        context.watchWith(device, new DeviceTerminated(entry.getKey()));
+      }
+      entry.getValue().tell(new Device.ReadTemperature(requestId, respondTemperatureAdapter));
+    }
+    stillWaiting = new HashSet<>(deviceIdToActor.keySet());
+
+    ActorRef<Command> self = context.getSelf();
+    Source<Device.RespondTemperature, CompletionStage<TemperatureStreamSummary>> temperatures =
+        ActorSource.<StreamElement, Command>actorRefWithBackpressure(
+                self,
+                StreamAck.INSTANCE,
+                element -> element == EndOfStream.INSTANCE
+                    ? Optional.of(CompletionStrategy.draining())
+                    : Optional.empty(),
+                element -> Optional.empty())
+            .mapMaterializedValue(ref -> {
+              self.tell(new StreamStarted(ref));
+              return (CompletionStage<TemperatureStreamSummary>) summary;
+            })
+            .collectType(Reading.class)
+            .map(Reading::response);
+    requester.tell(new RespondTemperatureStream(requestId, temperatures));
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(WrappedRespondTemperature.class, this::onRespondTemperature)
+        .onMessage(DeviceTerminated.class, this::onDeviceTerminated)
+        .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+        .onMessage(StreamStarted.class, this::onStreamStarted)
+        .onMessage(StreamAck.class, this::onStreamAck)
+        .onMessage(SubscriptionTimeout.class, this::onSubscriptionTimeout)
+        .onMessage(StreamTerminated.class, this::onStreamTerminated)
+        .build();
+  }
+
+  private Behavior<Command> onRespondTemperature(WrappedRespondTemperature r) {
+    if (stillWaiting.remove(r.response.deviceId())) {
+      responded++;
+      buffer.add(r.response);
+    }
+    return emit();
+  }
+
+  private Behavior<Command> onDeviceTerminated(DeviceTerminated t) {
+    if (stillWaiting.remove(t.deviceId())) {
+      terminated.add(t.deviceId());
+    }
+    return emit();
+  }
+
+  private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+    timedOut.addAll(stillWaiting);
+    stillWaiting.clear();
+    return emit();
+  }
+
+  private Behavior<Command> onStreamStarted(StreamStarted started) {
+    if (stream != null) {
+      // the source was run more than once, only the first run gets the readings
+      started.stream().tell(EndOfStream.INSTANCE);
+      return this;
+    }
+    timers.cancel(SubscriptionTimeout.INSTANCE);
+    stream = started.stream();
+    getContext().watchWith(stream, StreamTerminated.INSTANCE);
+    streamReady = true;
+    return emit();
+  }
+
+  private Behavior<Command> onStreamAck(StreamAck ack) {
+    streamReady = true;
+    return emit();
+  }
+
+  private Behavior<Command> onSubscriptionTimeout(SubscriptionTimeout timeout) {
+    getContext().getLog().warn("Temperature stream {} was not run in time, dropping its readings", requestId);
+    complete();
+    return Behaviors.stopped();
+  }
+
+  private Behavior<Command> onStreamTerminated(StreamTerminated terminated) {
+    // the consumer cancelled or the stream failed before all readings were emitted
+    timedOut.addAll(stillWaiting);
+    stillWaiting.clear();
+    complete();
+    return Behaviors.stopped();
+  }
+
+  private Behavior<Command> emit() {
+    if (stream == null || !streamReady) {
+      return this;
+    }
+    if (!buffer.isEmpty()) {
+      streamReady = false;
+      stream.tell(new Reading(buffer.poll()));
+      return this;
+    }
+    if (stillWaiting.isEmpty()) {
+      stream.tell(EndOfStream.INSTANCE);
+      complete();
+      return Behaviors.stopped();
+    }
+    return this;
+  }
+
+  private void complete() {
+    summary.complete(new TemperatureStreamSummary(
+        requestId, responded, Set.copyOf(timedOut), Set.copyOf(terminated)));
+  }
+}
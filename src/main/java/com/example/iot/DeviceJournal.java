@@ -0,0 +1,386 @@
+package com.example.iot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of a group's device table in memory-mapped segment files, next to a compacted
+ * snapshot of the whole table.
+ * <p>
+ * Appends only write into the mapping; {@link #flush()} forces them to disk on the given executor and is
+ * meant to be called periodically. Every entry carries the length and a CRC32C checksum of its payload and
+ * is followed by an end marker, its type byte is written last over the end marker of the entry before it.
+ * Every segment has a generation in its file name. When a segment is full the journal goes on in a new one
+ * of the next generation, and a copy of the table is written to a new snapshot on the given executor, off
+ * the thread that appends. The snapshot records the generation it was taken at, and the segments before it
+ * are only deleted once it is safely in place. Recovery maps the snapshot and then replays the segments
+ * from its generation on, each up to the end marker that follows its last complete entry or up to an entry
+ * whose length or checksum doesn't match, which a crash tore apart. So a crash at any point of a compaction
+ * never replays older entries over a newer snapshot, and a torn entry is never taken for data.
+ * Replaying entries that are already part of the snapshot is harmless, since every entry carries the full
+ * new state of one device.
+ */
+final class DeviceJournal implements AutoCloseable {
+
+  private static final String JOURNAL_SUFFIX = ".journal";
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+  private static final int SNAPSHOT_MAGIC = 0x494f5433;
+
+  private static final byte END = 0;
+  private static final byte TRACKED = 1;
+  private static final byte REMOVED = 2;
+  private static final byte RECORDED = 3;
+
+  // type, payload length and checksum
+  private static final int HEADER = 1 + 4 + 4;
+  // value, timestamp and request id in front of the device id of a RECORDED payload
+  private static final int RECORDED_FIELDS = 8 + 8 + 8;
+
+  private final DeviceTable table;
+  private final Path directory;
+  private final String name;
+  private final Path snapshotFile;
+  private final int segmentSize;
+  private final Executor io;
+  private FileChannel channel;
+  private MappedByteBuffer segment;
+  private long generation;
+  // the compactions run one after another, the last one may still be running
+  private CompletableFuture<Void> compacting = CompletableFuture.completedFuture(null);
+  // the last force of a flush, the next flush only starts another one once it is done
+  private CompletableFuture<Void> forcing = CompletableFuture.completedFuture(null);
+  private boolean dirty;
+
+  static Set<String> persistedGroups(Path directory) {
+    Set<String> groupIds = new HashSet<>();
+    if (!Files.isDirectory(directory)) {
+      return groupIds;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + JOURNAL_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        // <group>.<generation>.journal
+        String segment = name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+        int dot = segment.lastIndexOf('.');
+        if (dot > 0) {
+          groupIds.add(URLDecoder.decode(segment.substring(0, dot), StandardCharsets.UTF_8));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return groupIds;
+  }
+
+  /**
+   * Opens the journal of a group and recovers its devices into the given, empty table. Snapshots are
+   * written and segments forced to disk on the given executor, which is meant for blocking I/O.
+   */
+  static DeviceJournal open(Path directory, String groupId, int segmentSize, DeviceTable table, Executor io) {
+    try {
+      Files.createDirectories(directory);
+      return new DeviceJournal(
+          table, directory, URLEncoder.encode(groupId, StandardCharsets.UTF_8), segmentSize, io);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private DeviceJournal(DeviceTable table, Path directory, String name, int segmentSize, Executor io)
+      throws IOException {
+    this.table = table;
+    this.directory = directory;
+    this.name = name;
+    this.snapshotFile = directory.resolve(name + SNAPSHOT_SUFFIX);
+    this.segmentSize = segmentSize;
+    this.io = io;
+
+    long snapshotGeneration = Files.exists(snapshotFile) ? readSnapshot() : 0L;
+    TreeMap<Long, Path> segments = segments();
+    for (Path older : segments.headMap(snapshotGeneration).values()) {
+      // left over from a compaction that crashed after its snapshot was in place
+      Files.deleteIfExists(older);
+    }
+    for (Long replayed : segments.tailMap(snapshotGeneration).keySet()) {
+      if (channel != null) {
+        channel.close();
+      }
+      openSegment(replayed);
+      replay();
+    }
+    if (channel == null) {
+      openSegment(snapshotGeneration);
+    }
+  }
+
+  private void openSegment(long generation) throws IOException {
+    this.generation = generation;
+    channel = FileChannel.open(segmentFile(generation),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+  }
+
+  private Path segmentFile(long generation) {
+    return directory.resolve(name + "." + generation + JOURNAL_SUFFIX);
+  }
+
+  // the segment files of this group by generation
+  private TreeMap<Long, Path> segments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + JOURNAL_SUFFIX)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        String segment = fileName.substring(0, fileName.length() - JOURNAL_SUFFIX.length());
+        if (segment.startsWith(name + ".")) {
+          try {
+            segments.put(Long.parseLong(segment.substring(name.length() + 1)), file);
+          } catch (NumberFormatException e) {
+            // a segment of another group whose name starts with the same characters
+          }
+        }
+      }
+    }
+    return segments;
+  }
+
+  void tracked(String deviceId) {
+    append(TRACKED, deviceId, null);
+  }
+
+  void removed(String deviceId) {
+    append(REMOVED, deviceId, null);
+  }
+
+  /**
+   * Journals the state of a device, which only carries anything worth recovering once it has a reading.
+   */
+  void recorded(String deviceId, Device.State state) {
+    if (state.hasReading()) {
+      append(RECORDED, deviceId, state);
+    }
+  }
+
+  // the table already contains the change, so an entry too big even for a new segment is dropped
+  private void append(byte type, String deviceId, Device.State state) {
+    byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+    long length = (type == RECORDED ? RECORDED_FIELDS : 0) + (long) id.length;
+    // with the end marker after it
+    long entrySize = HEADER + length + 1;
+    if (entrySize > segmentSize) {
+      return;
+    }
+    if (segment.remaining() < entrySize) {
+      compact();
+    }
+    int start = segment.position();
+    segment.position(start + HEADER);
+    if (type == RECORDED) {
+      segment.putDouble(state.lastValue())
+          .putLong(state.lastTimestamp())
+          .putLong(state.lastRecordedRequestId());
+    }
+    segment.put(id);
+    segment.put(segment.position(), END);
+    segment.putInt(start + 1, (int) length);
+    segment.putInt(start + 5, checksum(type, segment.slice(start + HEADER, (int) length)));
+    // the entry before this one ends here until the type is in place
+    segment.put(start, type);
+    dirty = true;
+  }
+
+  private static int checksum(byte type, ByteBuffer payload) {
+    CRC32C crc = new CRC32C();
+    crc.update(type);
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Starts forcing the entries appended since the last flush to disk unless the last force is still running,
+   * and fails if a compaction or the last force failed.
+   */
+  void flush() {
+    if (compacting.isCompletedExceptionally()) {
+      compacting.join();
+    }
+    if (forcing.isCompletedExceptionally()) {
+      CompletableFuture<Void> failed = forcing;
+      forcing = CompletableFuture.completedFuture(null);
+      failed.join();
+    }
+    if (dirty && forcing.isDone()) {
+      MappedByteBuffer appended = segment;
+      dirty = false;
+      forcing = CompletableFuture.runAsync(appended::force, io);
+    }
+  }
+
+  /**
+   * Forces the journal to disk on the calling thread and waits for a running compaction to finish.
+   */
+  @Override
+  public void close() {
+    try {
+      forcing.join();
+      if (dirty) {
+        segment.force();
+        dirty = false;
+      }
+      compacting.join();
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  void delete() {
+    close();
+    try {
+      Files.deleteIfExists(snapshotFile);
+      for (Path file : segments().values()) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Goes on in a new segment and writes the table as it is now into a snapshot in the background.
+   */
+  private void compact() {
+    FileChannel fullChannel = channel;
+    MappedByteBuffer fullSegment = segment;
+    long next = generation + 1;
+    List<String> deviceIds = List.copyOf(table.deviceIds());
+    Device.State[] states = new Device.State[deviceIds.size()];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = table.state(table.slotOf(deviceIds.get(i)));
+    }
+    try {
+      openSegment(next);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    segment.put(0, END);
+    dirty = true;
+    // a failed compaction fails the next flush, the ones after it still get their turn
+    compacting = compacting
+        .handle((done, failure) -> null)
+        .thenRunAsync(() -> writeSnapshot(fullChannel, fullSegment, next, deviceIds, states), io);
+  }
+
+  private void writeSnapshot(
+      FileChannel fullChannel, MappedByteBuffer fullSegment, long next, List<String> deviceIds, Device.State[] states) {
+    Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try {
+      // until the snapshot is in place the full segment is still needed for recovery
+      fullSegment.force();
+      fullChannel.close();
+      try (FileChannel out = FileChannel.open(tmp,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+           DataOutputStream data = new DataOutputStream(
+               new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16))) {
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeLong(next);
+        data.writeInt(deviceIds.size());
+        for (int i = 0; i < states.length; i++) {
+          byte[] id = deviceIds.get(i).getBytes(StandardCharsets.UTF_8);
+          Device.State state = states[i];
+          data.writeInt(id.length);
+          data.write(id);
+          data.writeBoolean(state.hasReading());
+          data.writeDouble(state.lastValue());
+          data.writeLong(state.lastTimestamp());
+          data.writeLong(state.lastRecordedRequestId());
+        }
+        data.flush();
+        out.force(true);
+      }
+      Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      for (Path older : segments().headMap(next).values()) {
+        Files.deleteIfExists(older);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // returns the generation of the first segment that is not part of the snapshot
+  private long readSnapshot() throws IOException {
+    try (FileChannel in = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      MappedByteBuffer snapshot = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      if (snapshot.getInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a device snapshot: " + snapshotFile);
+      }
+      long generation = snapshot.getLong();
+      int count = snapshot.getInt();
+      for (int i = 0; i < count; i++) {
+        byte[] id = new byte[snapshot.getInt()];
+        snapshot.get(id);
+        String deviceId = new String(id, StandardCharsets.UTF_8);
+        boolean hasReading = snapshot.get() != 0;
+        double value = snapshot.getDouble();
+        long timestamp = snapshot.getLong();
+        long requestId = snapshot.getLong();
+        table.store(table.add(deviceId), new Device.State(requestId, hasReading, value, timestamp));
+      }
+      return generation;
+    }
+  }
+
+  private void replay() {
+    while (segment.remaining() >= HEADER) {
+      int start = segment.position();
+      byte type = segment.get(start);
+      if (type != TRACKED && type != REMOVED && type != RECORDED) {
+        // END, or a segment written by something else
+        return;
+      }
+      int length = segment.getInt(start + 1);
+      int idOffset = type == RECORDED ? RECORDED_FIELDS : 0;
+      if (length < idOffset || length > segment.remaining() - HEADER) {
+        return;
+      }
+      ByteBuffer payload = segment.slice(start + HEADER, length);
+      if (checksum(type, payload.duplicate()) != segment.getInt(start + 5)) {
+        // torn by a crash, appends go on from here
+        return;
+      }
+      byte[] id = new byte[length - idOffset];
+      payload.get(idOffset, id);
+      String deviceId = new String(id, StandardCharsets.UTF_8);
+      switch (type) {
+        case TRACKED -> table.add(deviceId);
+        case REMOVED -> table.remove(deviceId);
+        default -> table.store(table.add(deviceId),
+            new Device.State(payload.getLong(16), true, payload.getDouble(0), payload.getLong(8)));
+      }
+      segment.position(start + HEADER + length);
+    }
+  }
+}
@@ -1,24 +1,46 @@
 package com.example.iot;
 
+import akka.Done;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.pattern.StatusReply;
+import akka.stream.javadsl.Source;
+import com.example.metrics.ActorMetrics;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
   public interface Command {}
 
+  /**
+   * Tracks the device, and answers with the actor it currently runs in.
+   * <p>
+   * With passivation enabled that actor is stopped once the device is idle, and the ref in
+   * {@link DeviceRegistered} goes stale: whatever is sent to it afterwards ends up in dead letters. Anything
+   * holding on to a device for longer than one exchange should send {@link ForwardToDevice} through the
+   * group instead, which re-spawns a passivated device, or track the device again.
+   */
   public record RequestTrackDevice(String groupId, String deviceId, ActorRef<DeviceRegistered> replyTo)
       implements DeviceManager.Command, DeviceGroup.Command {}
 
+  /**
+   * The actor the device runs in right now, see {@link RequestTrackDevice} for how long it stays valid.
+   */
   public record DeviceRegistered(ActorRef<Device.Command> device) {}
 
   public record RequestDeviceList(long requestId, String groupId, ActorRef<ReplyDeviceList> replyTo)
@@ -26,6 +48,25 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
   public record ReplyDeviceList(long requestId, Set<String> ids) {}
 
+  /**
+   * Routes a command to a device through its group, which re-spawns the device if it was passivated. If the
+   * group or the device isn't tracked, unknownReplyTo is told an error unless it is null.
+   */
+  public record ForwardToDevice(
+      String groupId, String deviceId, Device.Command command, ActorRef<StatusReply<Done>> unknownReplyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {
+
+    public ForwardToDevice(String groupId, String deviceId, Device.Command command) {
+      this(groupId, deviceId, command, null);
+    }
+
+    void replyUnknown() {
+      if (unknownReplyTo != null) {
+        unknownReplyTo.tell(StatusReply.error("Unknown device " + deviceId + " in group " + groupId));
+      }
+    }
+  }
+
   public record RequestDeviceGroupList(long requestId, ActorRef<ReplyDeviceGroupList> replyTo)
       implements DeviceManager.Command {}
 
@@ -38,6 +79,126 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
   public record RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {}
 
+  public record RequestTemperatureStream(long requestId, String groupId, Duration deadline,
+                                         ActorRef<RespondTemperatureStream> replyTo)
+      implements DeviceGroup.Command, Command {}
+
+  public record RespondTemperatureStream(
+      long requestId,
+      Source<Device.RespondTemperature, CompletionStage<TemperatureStreamSummary>> temperatures) {}
+
+  public record TemperatureStreamSummary(long requestId, int responded, Set<String> timedOut,
+                                         Set<String> terminated) {}
+
+  public record RequestFleetTemperatures(long requestId, ActorRef<RespondFleetTemperatures> replyTo)
+      implements Command {}
+
+  public record RespondFleetTemperatures(long requestId,
+                                         Map<String, Map<String, TemperatureReading>> temperatures,
+                                         Map<String, GroupQueryStatus> status) {}
+
+  public enum GroupQueryStatus {COMPLETED, TIMED_OUT, TERMINATED}
+
+  /**
+   * Every value recorded by a device of the group is sent to the subscriber until it terminates, or until the
+   * group stops, which ends the subscription with {@link SubscriptionEnded}. Acknowledged once subscribed,
+   * answered with an error if there is no such group.
+   */
+  public record SubscribeTemperatureChanges(String groupId, ActorRef<TemperatureEvent> subscriber,
+                                            ActorRef<StatusReply<Done>> replyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {}
+
+  public interface TemperatureEvent {}
+
+  public record TemperatureChanged(String groupId, String deviceId, double value, long timestamp)
+      implements TemperatureEvent {}
+
+  /**
+   * The last event of a subscription, sent when the group stops.
+   */
+  public record SubscriptionEnded(String groupId) implements TemperatureEvent {}
+
+  public interface AlertRule {
+    String ruleId();
+  }
+
+  /**
+   * Raised when a value goes above raiseAbove and only cleared again when a value goes below clearBelow,
+   * so a value hovering around the threshold doesn't raise and clear it over and over.
+   */
+  public record ThresholdRule(String ruleId, double raiseAbove, double clearBelow) implements AlertRule {
+    public ThresholdRule {
+      if (clearBelow > raiseAbove) {
+        throw new IllegalArgumentException("clearBelow must not be greater than raiseAbove");
+      }
+    }
+  }
+
+  /**
+   * Like a {@link ThresholdRule} on how fast the value of a device changes, in degrees per second
+   * between two consecutive values.
+   */
+  public record RateOfChangeRule(String ruleId, double raiseAbovePerSecond, double clearBelowPerSecond)
+      implements AlertRule {
+    public RateOfChangeRule {
+      if (clearBelowPerSecond > raiseAbovePerSecond) {
+        throw new IllegalArgumentException("clearBelowPerSecond must not be greater than raiseAbovePerSecond");
+      }
+    }
+  }
+
+  /**
+   * Adds the rule to the group, replacing a rule with the same id. Rules are evaluated on every value a
+   * device of the group records from then on. Acknowledged once added, answered with an error if there is no
+   * such group.
+   */
+  public record AddAlertRule(String groupId, AlertRule rule, ActorRef<StatusReply<Done>> replyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {}
+
+  public record RemoveAlertRule(String groupId, String ruleId, ActorRef<StatusReply<Done>> replyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {}
+
+  /**
+   * Every alert of the group raised or cleared from now on is sent to the subscriber until it terminates.
+   * Acknowledged like {@link AddAlertRule}.
+   */
+  public record SubscribeAlerts(String groupId, ActorRef<Alert> subscriber, ActorRef<StatusReply<Done>> replyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {}
+
+  public record Alert(String groupId, String deviceId, String ruleId, boolean raised, double value, long timestamp) {}
+
+  public enum RollupResolution {MINUTE, HOUR}
+
+  /**
+   * Asks for the rollups of the buckets starting in [from, to), in epoch milliseconds, of the given devices
+   * of the group, or of all of them if none are given. Only answered with data if rollups are enabled, and
+   * with an error where there are no rollups at all.
+   */
+  public record RequestRollups(long requestId, String groupId, Set<String> deviceIds, RollupResolution resolution,
+                               long from, long to, ActorRef<StatusReply<RespondRollups>> replyTo)
+      implements DeviceManager.Command, DeviceGroup.Command {}
+
+  public record RespondRollups(long requestId, Map<String, Rollup> rollups) {}
+
+  /**
+   * The non-empty buckets of a device, oldest first, with the values of a bucket at the same index.
+   */
+  public record Rollup(long[] bucketStarts, double[] min, double[] max, double[] sum, long[] count) {
+    public static final Rollup EMPTY = new Rollup(new long[0], new double[0], new double[0], new double[0], new long[0]);
+  }
+
+  public record TemperatureSample(String groupId, String deviceId, double value) {}
+
+  public record RecordTemperatureBatch(long requestId, List<TemperatureSample> samples,
+                                       ActorRef<TemperatureBatchRecorded> replyTo) implements Command {}
+
+  public record TemperatureBatchRecorded(long requestId, int accepted, int rejected) {}
+
+  public record RecordGroupTemperatures(long requestId, String groupId, List<TemperatureSample> samples,
+                                        ActorRef<GroupTemperaturesRecorded> replyTo) implements DeviceGroup.Command {}
+
+  public record GroupTemperaturesRecorded(long requestId, String groupId, int accepted, int rejected) {}
+
   public interface TemperatureReading {}
 
   public record Temperature(double value) implements TemperatureReading {
@@ -64,14 +225,54 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
   public enum DeviceTimedOut implements TemperatureReading {INSTANCE}
   
   public static Behavior<Command> create() {
-    return Behaviors.setup(DeviceManager::new);
+    return Behaviors.setup(
+        context -> create(IotSettings.create(context.getSystem().settings().config())));
+  }
+
+  public static Behavior<Command> create(IotSettings settings) {
+    return create(settings, 0, 1);
   }
 
+  /**
+   * A manager that is one of several partitions, it only recovers the persisted groups of its own partition.
+   */
+  static Behavior<Command> create(IotSettings settings, int partition, int partitions) {
+    return Behaviors.setup(context -> new DeviceManager(context, settings, partition, partitions));
+  }
+
+  static int partitionOf(String groupId, int partitions) {
+    return Math.floorMod(groupId.hashCode(), partitions);
+  }
+
+  private static final Props GROUP_PROPS =
+      ActorMetrics.mailbox("device-group").withDispatcherFromConfig("iot.dispatchers.group");
+  private static final DispatcherSelector QUERY_DISPATCHER = DispatcherSelector.fromConfig("iot.dispatchers.query");
+
+  private final IotSettings settings;
   private final Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor = new HashMap<>();
 
-  private DeviceManager(ActorContext<Command> context) {
+  private DeviceManager(ActorContext<Command> context, IotSettings settings, int partition, int partitions) {
     super(context);
-    context.getLog().info("DeviceManager started");
+    this.settings = settings;
+    if (settings.persistenceEnabled()) {
+      for (String groupId : DeviceJournal.persistedGroups(settings.persistenceDirectory())) {
+        if (partitionOf(groupId, partitions) == partition) {
+          spawnGroup(groupId);
+        }
+      }
+    }
+    context.getLog().info("DeviceManager started with {} recovered groups", groupIdToActor.size());
+  }
+
+  private ActorRef<DeviceGroup.Command> spawnGroup(String groupId) {
+    ActorRef<DeviceGroup.Command> groupActor =
+        getContext().spawn(
+            ActorMetrics.instrument("device-group", DeviceGroup.create(groupId, settings)),
+            "group-" + groupId,
+            GROUP_PROPS);
+    getContext().watchWith(groupActor, new DeviceGroupTerminated(groupId));
+    groupIdToActor.put(groupId, groupActor);
+    return groupActor;
   }
 
   private DeviceManager onTrackDevice(RequestTrackDevice trackMsg) {
@@ -81,11 +282,7 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
       ref.tell(trackMsg);
     } else {
       getContext().getLog().info("Creating device group actor for {}", groupId);
-      ActorRef<DeviceGroup.Command> groupActor =
-          getContext().spawn(DeviceGroup.create(groupId), "group-" + groupId);
-      getContext().watchWith(groupActor, new DeviceGroupTerminated(groupId));
-      groupActor.tell(trackMsg);
-      groupIdToActor.put(groupId, groupActor);
+      spawnGroup(groupId).tell(trackMsg);
     }
     return this;
   }
@@ -100,6 +297,106 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
     return this;
   }
 
+  private DeviceManager onForwardToDevice(ForwardToDevice f) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(f.groupId());
+    if (ref != null) {
+      ref.tell(f);
+    } else {
+      getContext().getLog().warn("Dropping message for device {} of unknown group {}", f.deviceId(), f.groupId());
+      f.replyUnknown();
+    }
+    return this;
+  }
+
+  private DeviceManager onSubscribeTemperatureChanges(SubscribeTemperatureChanges s) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(s.groupId());
+    if (ref != null) {
+      ref.tell(s);
+    } else {
+      s.replyTo().tell(StatusReply.error("Unknown group " + s.groupId()));
+    }
+    return this;
+  }
+
+  private DeviceManager onAlertCommand(String groupId, DeviceGroup.Command command,
+                                       ActorRef<StatusReply<Done>> replyTo) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(groupId);
+    if (ref != null) {
+      ref.tell(command);
+    } else {
+      replyTo.tell(StatusReply.error("Unknown group " + groupId));
+    }
+    return this;
+  }
+
+  private DeviceManager onRecordTemperatureBatch(RecordTemperatureBatch r) {
+    Map<String, List<TemperatureSample>> samplesByGroup = new HashMap<>();
+    int rejected = 0;
+    for (TemperatureSample sample : r.samples()) {
+      if (groupIdToActor.containsKey(sample.groupId())) {
+        samplesByGroup.computeIfAbsent(sample.groupId(), k -> new ArrayList<>()).add(sample);
+      } else {
+        rejected++;
+      }
+    }
+    if (samplesByGroup.isEmpty()) {
+      r.replyTo().tell(new TemperatureBatchRecorded(r.requestId(), 0, rejected));
+      return this;
+    }
+
+    Map<String, ActorRef<DeviceGroup.Command>> groups = new HashMap<>();
+    for (String groupId : samplesByGroup.keySet()) {
+      groups.put(groupId, groupIdToActor.get(groupId));
+    }
+    getContext().spawnAnonymous(TemperatureBatchCollector.create(
+        groups, samplesByGroup, r.requestId(), rejected, r.replyTo(), settings.queryTimeout()),
+        QUERY_DISPATCHER);
+    return this;
+  }
+
+  private DeviceManager onAllTemperatures(RequestAllTemperatures r) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(r.groupId());
+    if (ref != null) {
+      ref.tell(r);
+    } else {
+      r.replyTo().tell(new RespondAllTemperatures(r.requestId(), Map.of()));
+    }
+    return this;
+  }
+
+  private DeviceManager onRollups(RequestRollups r) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(r.groupId());
+    if (ref != null) {
+      ref.tell(r);
+    } else {
+      r.replyTo().tell(StatusReply.success(new RespondRollups(r.requestId(), Map.of())));
+    }
+    return this;
+  }
+
+  private DeviceManager onTemperatureStream(RequestTemperatureStream r) {
+    ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(r.groupId());
+    if (ref != null) {
+      ref.tell(r);
+    } else {
+      TemperatureStreamSummary summary = new TemperatureStreamSummary(r.requestId(), 0, Set.of(), Set.of());
+      r.replyTo().tell(new RespondTemperatureStream(r.requestId(), Source.<Device.RespondTemperature>empty()
+          .mapMaterializedValue(notUsed -> CompletableFuture.completedStage(summary))));
+    }
+    return this;
+  }
+
+  private DeviceManager onFleetTemperatures(RequestFleetTemperatures r) {
+    if (groupIdToActor.isEmpty()) {
+      r.replyTo().tell(new RespondFleetTemperatures(r.requestId(), Map.of(), Map.of()));
+      return this;
+    }
+    getContext().spawnAnonymous(DeviceManagerQuery.create(
+        Map.copyOf(groupIdToActor), r.requestId(), r.replyTo(), settings.fleetQueryTimeout()),
+        QUERY_DISPATCHER);
+    return this;
+  }
+
   private DeviceManager onDeviceGroupList(RequestDeviceGroupList r) {
     r.replyTo().tell(new ReplyDeviceGroupList(r.requestId(), groupIdToActor.keySet()));
     return this;
@@ -115,6 +412,16 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
     return newReceiveBuilder()
         .onMessage(RequestTrackDevice.class, this::onTrackDevice)
         .onMessage(RequestDeviceList.class, this::onRequestDeviceList)
+        .onMessage(ForwardToDevice.class, this::onForwardToDevice)
+        .onMessage(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+        .onMessage(SubscribeTemperatureChanges.class, this::onSubscribeTemperatureChanges)
+        .onMessage(AddAlertRule.class, a -> onAlertCommand(a.groupId(), a, a.replyTo()))
+        .onMessage(RemoveAlertRule.class, r -> onAlertCommand(r.groupId(), r, r.replyTo()))
+        .onMessage(SubscribeAlerts.class, s -> onAlertCommand(s.groupId(), s, s.replyTo()))
+        .onMessage(RequestAllTemperatures.class, this::onAllTemperatures)
+        .onMessage(RequestRollups.class, this::onRollups)
+        .onMessage(RequestTemperatureStream.class, this::onTemperatureStream)
+        .onMessage(RequestFleetTemperatures.class, this::onFleetTemperatures)
         .onMessage(RequestDeviceGroupList.class, this::onDeviceGroupList)
         .onMessage(DeviceGroupTerminated.class, this::onTerminated)
         .onSignal(PostStop.class, signal -> onPostStop())
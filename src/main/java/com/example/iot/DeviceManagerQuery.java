@@ -0,0 +1,115 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.*;
+import com.example.iot.DeviceManager.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fans a {@link RequestAllTemperatures} out to every group at once and merges the answers as they
+ * arrive. Groups that did not answer before the deadline are reported with their status instead.
+ */
+public class DeviceManagerQuery extends AbstractBehavior<DeviceManagerQuery.Command> {
+
+  public interface Command {}
+
+  private enum CollectionTimeout implements Command {INSTANCE}
+
+  record WrappedRespondAllTemperatures(RespondAllTemperatures response) implements Command {}
+
+  private record GroupTerminated(String groupId) implements Command {}
+
+  public static Behavior<Command> create(
+      Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+      long requestId,
+      ActorRef<RespondFleetTemperatures> requester,
+      Duration timeout) {
+    return Behaviors.setup(
+        context -> Behaviors.withTimers(
+            timers -> new DeviceManagerQuery(groupIdToActor, requestId, requester, timeout, context, timers)
+        )
+    );
+  }
+
+  private final long requestId;
+  private final ActorRef<RespondFleetTemperatures> requester;
+  private final String[] groupIds;
+
+  private final Map<String, Map<String, TemperatureReading>> repliesSoFar = new HashMap<>();
+  private final Map<String, GroupQueryStatus> status = new HashMap<>();
+  private final Set<String> stillWaiting;
+
+  private DeviceManagerQuery(
+      Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+      long requestId,
+      ActorRef<RespondFleetTemperatures> requester,
+      Duration timeout,
+      ActorContext<Command> context,
+      TimerScheduler<Command> timers) {
+    super(context);
+    this.requestId = requestId;
+    this.requester = requester;
+
+    timers.startSingleTimer(CollectionTimeout.INSTANCE, timeout);
+
+    ActorRef<RespondAllTemperatures> respondAllTemperaturesAdapter =
+        context.messageAdapter(RespondAllTemperatures.class, WrappedRespondAllTemperatures::new);
+
+    // each group is asked with its index as request id, so the answer tells which group it came from
+    groupIds = groupIdToActor.keySet().toArray(new String[0]);
+    for (int i = 0; i < groupIds.length; i++) {
+      ActorRef<DeviceGroup.Command> group = groupIdToActor.get(groupIds[i]);
+      context.watchWith(group, new GroupTerminated(groupIds[i]));
+      group.tell(new RequestAllTemperatures(i, groupIds[i], respondAllTemperaturesAdapter));
+    }
+    stillWaiting = new HashSet<>(groupIdToActor.keySet());
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(WrappedRespondAllTemperatures.class, this::onRespondAllTemperatures)
+        .onMessage(GroupTerminated.class, this::onGroupTerminated)
+        .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+        .build();
+  }
+
+  private Behavior<Command> onRespondAllTemperatures(WrappedRespondAllTemperatures r) {
+    String groupId = groupIds[(int) r.response.requestId()];
+    if (stillWaiting.remove(groupId)) {
+      repliesSoFar.put(groupId, r.response.temperatures());
+      status.put(groupId, GroupQueryStatus.COMPLETED);
+    }
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> onGroupTerminated(GroupTerminated terminated) {
+    if (stillWaiting.remove(terminated.groupId())) {
+      status.put(terminated.groupId(), GroupQueryStatus.TERMINATED);
+    }
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+    for (String groupId : stillWaiting) {
+      status.put(groupId, GroupQueryStatus.TIMED_OUT);
+    }
+    stillWaiting.clear();
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> respondWhenAllCollected() {
+    if (stillWaiting.isEmpty()) {
+      requester.tell(new RespondFleetTemperatures(requestId, repliesSoFar, status));
+      return Behaviors.stopped();
+    } else {
+      return this;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package com.example.iot;
+
+import com.example.iot.DeviceManager.Temperature;
+import com.example.iot.DeviceManager.TemperatureNotAvailable;
+import com.example.iot.DeviceManager.TemperatureReading;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every device tracked by a group, whether its actor is running or passivated, with its last known
+ * state kept in primitive arrays indexed by a slot that is assigned when the device is registered.
+ */
+final class DeviceTable {
+
+  private final Map<String, Integer> slotByDeviceId = new HashMap<>();
+  private String[] deviceIds = new String[16];
+  private boolean[] hasValue = new boolean[16];
+  private double[] values = new double[16];
+  private long[] timestamps = new long[16];
+  private long[] recordedRequestIds = new long[16];
+  private int[] freeSlots = new int[16];
+  private int freeCount;
+  private int slotCount;
+
+  int add(String deviceId) {
+    Integer existing = slotByDeviceId.get(deviceId);
+    if (existing != null) {
+      return existing;
+    }
+    int slot;
+    if (freeCount > 0) {
+      slot = freeSlots[--freeCount];
+    } else {
+      if (slotCount == deviceIds.length) {
+        int capacity = deviceIds.length * 2;
+        deviceIds = Arrays.copyOf(deviceIds, capacity);
+        hasValue = Arrays.copyOf(hasValue, capacity);
+        values = Arrays.copyOf(values, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        recordedRequestIds = Arrays.copyOf(recordedRequestIds, capacity);
+      }
+      slot = slotCount++;
+    }
+    deviceIds[slot] = deviceId;
+    store(slot, Device.State.EMPTY);
+    slotByDeviceId.put(deviceId, slot);
+    return slot;
+  }
+
+  void remove(String deviceId) {
+    Integer slot = slotByDeviceId.remove(deviceId);
+    if (slot != null) {
+      deviceIds[slot] = null;
+      hasValue[slot] = false;
+      if (freeCount == freeSlots.length) {
+        freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+      }
+      freeSlots[freeCount++] = slot;
+    }
+  }
+
+  boolean contains(String deviceId) {
+    return slotByDeviceId.containsKey(deviceId);
+  }
+
+  /**
+   * Returns -1 if the device is not tracked.
+   */
+  int slotOf(String deviceId) {
+    Integer slot = slotByDeviceId.get(deviceId);
+    return slot == null ? -1 : slot;
+  }
+
+  boolean isEmpty() {
+    return slotByDeviceId.isEmpty();
+  }
+
+  int size() {
+    return slotByDeviceId.size();
+  }
+
+  Set<String> deviceIds() {
+    return Set.copyOf(slotByDeviceId.keySet());
+  }
+
+  /**
+   * Returns false if the slot no longer belongs to the device, e.g. for a late update from a stopped device.
+   */
+  boolean update(int slot, String deviceId, double value, long timestamp) {
+    if (!owns(slot, deviceId)) {
+      return false;
+    }
+    values[slot] = value;
+    timestamps[slot] = timestamp;
+    hasValue[slot] = true;
+    return true;
+  }
+
+  boolean owns(int slot, String deviceId) {
+    return slot >= 0 && slot < slotCount && deviceId.equals(deviceIds[slot]);
+  }
+
+  void store(int slot, Device.State state) {
+    hasValue[slot] = state.hasReading();
+    values[slot] = state.lastValue();
+    timestamps[slot] = state.lastTimestamp();
+    recordedRequestIds[slot] = state.lastRecordedRequestId();
+  }
+
+  Device.State state(int slot) {
+    return new Device.State(recordedRequestIds[slot], hasValue[slot], values[slot], timestamps[slot]);
+  }
+
+  TemperatureReading reading(int slot) {
+    return hasValue[slot] ? new Temperature(values[slot]) : TemperatureNotAvailable.INSTANCE;
+  }
+
+  Map<String, TemperatureReading> toReadings() {
+    Map<String, TemperatureReading> readings = new HashMap<>(slotByDeviceId.size() * 4 / 3 + 1);
+    for (int slot = 0; slot < slotCount; slot++) {
+      String deviceId = deviceIds[slot];
+      if (deviceId != null) {
+        readings.put(deviceId, reading(slot));
+      }
+    }
+    return readings;
+  }
+}
@@ -0,0 +1,209 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.SpawnProtocol;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import com.example.iot.DeviceManager.*;
+import com.typesafe.config.ConfigFactory;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToLongFunction;
+
+/**
+ * Drives a fleet like the one {@link IotMain} runs with readings and group queries at a fixed rate.
+ * <p>
+ * The load is open-loop: the n-th reading is due at {@code start + n * interval} no matter how fast the
+ * previous ones were acknowledged, and its latency is measured from that intended time. A stall then
+ * shows up in the latency of every request that should have been sent during it instead of only in the
+ * one that was waiting, so the histograms are not flattered by coordinated omission.
+ * <p>
+ * Arguments: groups, devices per group, readings per second, seconds, queries per second.
+ */
+public class IotLoadGenerator {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  private enum Finish {INSTANCE}
+
+  private record Result(Histogram latencies, long received) {}
+
+  public static void main(String[] args) throws Exception {
+    int groups = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int devicesPerGroup = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int readingsPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+    int queriesPerSecond = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+    ActorSystem<SpawnProtocol.Command> system = ActorSystem.create(SpawnProtocol.create(), "iot-load",
+        ConfigFactory.parseString("akka.loglevel = WARNING").withFallback(ConfigFactory.load()));
+    try {
+      ActorRef<DeviceManager.Command> manager = spawn(system, PartitionedDeviceManager.create());
+      List<String> groupIds = new ArrayList<>(groups);
+      List<String[]> devices = new ArrayList<>();
+      register(system, manager, groups, devicesPerGroup, groupIds, devices);
+      System.out.printf("registered %,d devices in %,d groups%n", groups * devicesPerGroup, groups);
+
+      long readings = (long) readingsPerSecond * seconds;
+      long queries = (long) queriesPerSecond * seconds;
+      long readingInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(readingsPerSecond, 1);
+      long queryInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(queriesPerSecond, 1);
+
+      long start = System.nanoTime();
+      CompletableFuture<Result> readingsDone = new CompletableFuture<>();
+      CompletableFuture<Result> queriesDone = new CompletableFuture<>();
+      ActorRef<Object> acks = spawn(system,
+          collect(Device.TemperatureRecorded.class, Device.TemperatureRecorded::requestId,
+              start, readingInterval, readings, readingsDone));
+      ActorRef<Object> answers = spawn(system,
+          collect(RespondAllTemperatures.class, RespondAllTemperatures::requestId,
+              start, queryInterval, queries, queriesDone));
+
+      long maxLag = send(manager, groupIds, devices, start, readings, readingInterval, queries, queryInterval,
+          acks.narrow(), answers.narrow());
+      long sentNanos = System.nanoTime() - start;
+
+      report("readings", await(acks, readingsDone), readings, sentNanos);
+      report("queries", await(answers, queriesDone), queries, sentNanos);
+      System.out.printf("max send lag %,d us%n", TimeUnit.NANOSECONDS.toMicros(maxLag));
+    } finally {
+      system.terminate();
+    }
+  }
+
+  private static <T> ActorRef<T> spawn(ActorSystem<SpawnProtocol.Command> system, Behavior<T> behavior)
+      throws Exception {
+    return AskPattern.<SpawnProtocol.Command, ActorRef<T>>ask(
+            system,
+            replyTo -> new SpawnProtocol.Spawn<>(behavior, "", Props.empty(), replyTo),
+            TIMEOUT,
+            system.scheduler())
+        .toCompletableFuture()
+        .get();
+  }
+
+  private static void register(ActorSystem<?> system, ActorRef<DeviceManager.Command> manager,
+                               int groups, int devicesPerGroup, List<String> groupIds, List<String[]> devices) {
+    List<CompletableFuture<DeviceRegistered>> registered = new ArrayList<>();
+    for (int g = 0; g < groups; g++) {
+      String groupId = "group-" + g;
+      String[] deviceIds = new String[devicesPerGroup];
+      for (int d = 0; d < devicesPerGroup; d++) {
+        String deviceId = "device-" + d;
+        deviceIds[d] = deviceId;
+        registered.add(AskPattern.<DeviceManager.Command, DeviceRegistered>ask(
+                manager, replyTo -> new RequestTrackDevice(groupId, deviceId, replyTo), TIMEOUT, system.scheduler())
+            .toCompletableFuture());
+      }
+      groupIds.add(groupId);
+      devices.add(deviceIds);
+    }
+    CompletableFuture.allOf(registered.toArray(new CompletableFuture[0])).join();
+  }
+
+  /**
+   * Sends every reading and query at its intended time, or right away if the sender is already late,
+   * and returns how late it got at most.
+   */
+  private static long send(ActorRef<DeviceManager.Command> manager, List<String> groupIds, List<String[]> devices,
+                           long start, long readings, long readingInterval, long queries, long queryInterval,
+                           ActorRef<Device.TemperatureRecorded> acks, ActorRef<RespondAllTemperatures> answers) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long maxLag = 0;
+    long reading = 0;
+    long query = 0;
+    while (reading < readings || query < queries) {
+      long readingDue = reading < readings ? start + reading * readingInterval : Long.MAX_VALUE;
+      long queryDue = query < queries ? start + query * queryInterval : Long.MAX_VALUE;
+      long due = Math.min(readingDue, queryDue);
+      long now = System.nanoTime();
+      if (now < due) {
+        LockSupport.parkNanos(due - now);
+        continue;
+      }
+      maxLag = Math.max(maxLag, now - due);
+
+      int group = random.nextInt(groupIds.size());
+      if (readingDue <= queryDue) {
+        String[] deviceIds = devices.get(group);
+        manager.tell(new ForwardToDevice(groupIds.get(group), deviceIds[random.nextInt(deviceIds.length)],
+            new Device.RecordTemperature(reading, 15.0 + random.nextDouble() * 10.0, acks)));
+        reading++;
+      } else {
+        manager.tell(new RequestAllTemperatures(query, groupIds.get(group), answers));
+        query++;
+      }
+    }
+    return maxLag;
+  }
+
+  // records the latency of every reply from the intended send time of its request
+  private static <T> Behavior<Object> collect(Class<T> replyClass, ToLongFunction<T> requestId,
+                                              long start, long interval, long expected,
+                                              CompletableFuture<Result> done) {
+    return Behaviors.setup(context -> {
+      Histogram latencies = new Histogram(3);
+      long[] received = new long[1];
+      if (expected == 0) {
+        done.complete(new Result(latencies, 0));
+        return Behaviors.stopped();
+      }
+      return Behaviors.receive(Object.class)
+          .onMessage(replyClass, reply -> {
+            long intended = start + requestId.applyAsLong(reply) * interval;
+            latencies.recordValue(Math.max(System.nanoTime() - intended, 0L));
+            if (++received[0] == expected) {
+              done.complete(new Result(latencies, received[0]));
+              return Behaviors.stopped();
+            }
+            return Behaviors.same();
+          })
+          .onMessageEquals(Finish.INSTANCE, () -> {
+            done.complete(new Result(latencies, received[0]));
+            return Behaviors.stopped();
+          })
+          .build();
+    });
+  }
+
+  private static Result await(ActorRef<Object> collector, CompletableFuture<Result> done) throws Exception {
+    if (done.isDone()) {
+      return done.get();
+    }
+    try {
+      return done.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // report what has arrived, the rest counts as lost
+      collector.tell(Finish.INSTANCE);
+      return done.get();
+    }
+  }
+
+  private static void report(String name, Result result, long sent, long sentNanos) {
+    Histogram latencies = result.latencies();
+    System.out.printf("%s: sent %,d, answered %,d, %,d/s, latency p50 %,d us, p99 %,d us, p99.9 %,d us, max %,d us%n",
+        name,
+        sent,
+        result.received(),
+        result.received() * TimeUnit.SECONDS.toNanos(1) / Math.max(sentNanos, 1L),
+        micros(latencies.getValueAtPercentile(50.0)),
+        micros(latencies.getValueAtPercentile(99.0)),
+        micros(latencies.getValueAtPercentile(99.9)),
+        micros(latencies.getMaxValue()));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
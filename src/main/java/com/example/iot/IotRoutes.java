@@ -0,0 +1,328 @@
+package com.example.iot;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Scheduler;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.http.javadsl.marshallers.jackson.Jackson;
+import akka.http.javadsl.marshalling.sse.EventStreamMarshalling;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.sse.ServerSentEvent;
+import akka.http.javadsl.server.ExceptionHandler;
+import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Route;
+import akka.japi.Pair;
+import akka.pattern.StatusReply;
+import akka.serialization.jackson.JacksonObjectMapperProvider;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.typed.javadsl.ActorSource;
+import akka.util.ByteString;
+import com.example.iot.DeviceManager.*;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static akka.http.javadsl.server.Directives.*;
+
+/**
+ * HTTP front door of the IoT subsystem, talking to a {@link DeviceManager} or anything else that speaks its protocol.
+ * <p>
+ * {@code POST /iot/readings} takes newline delimited JSON samples. The entity is framed and parsed as it
+ * arrives and sent on in batches with a bounded number of batches in flight, so a large upload is
+ * backpressured instead of buffered. {@code GET /iot/groups/{groupId}/temperatures/events} is a
+ * server-sent event stream of the readings recorded in a group that ends when the group stops, or 404 if
+ * there is no such group.
+ */
+public class IotRoutes {
+
+  public record Reading(double value) {}
+
+  public record ReadingRecorded(long requestId) {}
+
+  public record DeviceTracked(String groupId, String deviceId) {}
+
+  public record DeviceIds(Set<String> ids) {}
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public record TemperatureView(String status, Double value) {}
+
+  public record GroupTemperatures(Map<String, TemperatureView> temperatures) {}
+
+  public record IngestResult(long accepted, long rejected) {}
+
+  // a line longer than max-line-length fails the framing, which is the client's fault
+  private static final ExceptionHandler INGEST_EXCEPTIONS = ExceptionHandler.newBuilder()
+      .match(akka.stream.scaladsl.Framing.FramingException.class,
+          e -> complete(StatusCodes.BAD_REQUEST, e.getMessage()))
+      .build();
+
+  private final ActorRef<DeviceManager.Command> deviceManager;
+  private final Duration askTimeout;
+  private final Scheduler scheduler;
+  private final ActorSystem<?> system;
+  private final ObjectMapper objectMapper;
+  private final int ingestParallelism;
+  private final int ingestBatchSize;
+  private final int ingestMaxLineLength;
+  private final Duration sseTick;
+  private final Duration sseKeepAlive;
+  private final int sseBufferSize;
+  private final AtomicLong requestIds = new AtomicLong();
+
+  public IotRoutes(ActorSystem<?> system, ActorRef<DeviceManager.Command> deviceManager) {
+    this.deviceManager = deviceManager;
+    this.system = system;
+    scheduler = system.scheduler();
+    Config http = system.settings().config().getConfig("iot.http");
+    askTimeout = http.getDuration("ask-timeout");
+    ingestParallelism = http.getInt("ingest.parallelism");
+    ingestBatchSize = http.getInt("ingest.batch-size");
+    ingestMaxLineLength = Math.toIntExact(http.getBytes("ingest.max-line-length"));
+    sseTick = http.getDuration("events.tick");
+    sseKeepAlive = http.getDuration("events.keep-alive");
+    sseBufferSize = http.getInt("events.buffer-size");
+
+    if (!(system.classicSystem() instanceof ExtendedActorSystem extendedActorSystem)) {
+      throw new IllegalArgumentException("Failed to get object mapper.");
+    }
+    objectMapper = new JacksonObjectMapperProvider(extendedActorSystem).getOrCreate("akka-http", Optional.empty());
+  }
+
+  private CompletionStage<DeviceRegistered> trackDevice(String groupId, String deviceId) {
+    return AskPattern.ask(
+        deviceManager, ref -> new RequestTrackDevice(groupId, deviceId, ref), askTimeout, scheduler);
+  }
+
+  private CompletionStage<ReplyDeviceList> getDevices(String groupId) {
+    return AskPattern.ask(
+        deviceManager, ref -> new RequestDeviceList(requestIds.incrementAndGet(), groupId, ref), askTimeout, scheduler);
+  }
+
+  /**
+   * Empty if the device is not tracked.
+   */
+  private CompletionStage<Optional<Device.TemperatureRecorded>> recordTemperature(
+      String groupId, String deviceId, double value) {
+    long requestId = requestIds.incrementAndGet();
+    // answered with either the recorded reading or an error for an unknown device
+    return AskPattern.<DeviceManager.Command, Object>ask(
+            deviceManager,
+            ref -> new ForwardToDevice(
+                groupId, deviceId, new Device.RecordTemperature(requestId, value, ref.narrow()), ref.narrow()),
+            askTimeout,
+            scheduler)
+        .thenApply(reply -> reply instanceof Device.TemperatureRecorded recorded
+            ? Optional.of(recorded)
+            : Optional.empty());
+  }
+
+  private CompletionStage<RespondAllTemperatures> getTemperatures(String groupId) {
+    return AskPattern.ask(
+        deviceManager,
+        ref -> new RequestAllTemperatures(requestIds.incrementAndGet(), groupId, ref),
+        askTimeout,
+        scheduler);
+  }
+
+  private CompletionStage<TemperatureBatchRecorded> recordBatch(List<TemperatureSample> samples) {
+    return AskPattern.ask(
+        deviceManager,
+        ref -> new RecordTemperatureBatch(requestIds.incrementAndGet(), samples, ref),
+        askTimeout,
+        scheduler);
+  }
+
+  static TemperatureView view(TemperatureReading reading) {
+    if (reading instanceof Temperature temperature) {
+      return new TemperatureView("ok", temperature.value());
+    } else if (reading == TemperatureNotAvailable.INSTANCE) {
+      return new TemperatureView("not-available", null);
+    } else if (reading == DeviceNotAvailable.INSTANCE) {
+      return new TemperatureView("device-not-available", null);
+    } else {
+      return new TemperatureView("timed-out", null);
+    }
+  }
+
+  private static GroupTemperatures toView(RespondAllTemperatures response) {
+    Map<String, TemperatureView> temperatures = new TreeMap<>();
+    response.temperatures().forEach((deviceId, reading) -> temperatures.put(deviceId, view(reading)));
+    return new GroupTemperatures(temperatures);
+  }
+
+  /**
+   * Lines are parsed one by one as they arrive, a line that is not a sample is counted as rejected.
+   */
+  Flow<ByteString, IngestResult, ?> ingest() {
+    return Flow.of(ByteString.class)
+        .via(Framing.delimiter(ByteString.fromString("\n"), ingestMaxLineLength, FramingTruncation.ALLOW))
+        .map(ByteString::utf8String)
+        .filter(line -> !line.isBlank())
+        .map(this::parseSample)
+        .grouped(ingestBatchSize)
+        .mapAsync(ingestParallelism, lines -> {
+          List<TemperatureSample> samples = new ArrayList<>(lines.size());
+          lines.forEach(sample -> sample.ifPresent(samples::add));
+          long malformed = lines.size() - samples.size();
+          return recordBatch(samples)
+              .thenApply(recorded -> new IngestResult(recorded.accepted(), recorded.rejected() + malformed));
+        })
+        .fold(new IngestResult(0, 0),
+            (total, batch) -> new IngestResult(total.accepted() + batch.accepted(), total.rejected() + batch.rejected()));
+  }
+
+  private Optional<TemperatureSample> parseSample(String line) {
+    try {
+      return Optional.of(objectMapper.readValue(line, TemperatureSample.class));
+    } catch (JsonProcessingException e) {
+      return Optional.empty();
+    }
+  }
+
+  private CompletionStage<Boolean> subscribe(String groupId, ActorRef<TemperatureEvent> subscriber) {
+    return AskPattern.<DeviceManager.Command, StatusReply<Done>>ask(
+            deviceManager,
+            ref -> new SubscribeTemperatureChanges(groupId, subscriber, ref),
+            askTimeout,
+            scheduler)
+        .thenApply(StatusReply::isSuccess);
+  }
+
+  /**
+   * Pushed changes of a group to the materialized subscriber, of which only the latest per device is sent on
+   * every tick, so a slow client skips values instead of falling behind. Completes when the subscription ends.
+   */
+  Source<ServerSentEvent, ActorRef<TemperatureEvent>> temperatureChanges() {
+    return ActorSource.<TemperatureEvent>actorRef(
+            event -> event instanceof SubscriptionEnded, event -> Optional.empty(), sseBufferSize,
+            OverflowStrategy.dropHead())
+        .collectType(TemperatureChanged.class)
+        .conflateWithSeed(
+            changed -> {
+              Map<String, TemperatureChanged> latest = new LinkedHashMap<>();
+              latest.put(changed.deviceId(), changed);
+              return latest;
+            },
+            (latest, changed) -> {
+              latest.put(changed.deviceId(), changed);
+              return latest;
+            })
+        .zipWith(Source.tick(sseTick, sseTick, NotUsed.getInstance()), (latest, tick) -> latest)
+        .mapConcat(latest -> latest.values())
+        .map(changed -> ServerSentEvent.create(objectMapper.writeValueAsString(changed), "temperature"))
+        .keepAlive(sseKeepAlive, ServerSentEvent::heartbeat);
+  }
+
+  /**
+   * The subscriber is materialized up front, so an unknown group is answered with 404 before the stream starts.
+   */
+  private Route temperatureEvents(String groupId) {
+    Pair<ActorRef<TemperatureEvent>, Source<ServerSentEvent, NotUsed>> events =
+        temperatureChanges().preMaterialize(system);
+    return onSuccess(subscribe(groupId, events.first()), subscribed -> {
+      if (!subscribed) {
+        events.first().tell(new SubscriptionEnded(groupId));
+        return complete(StatusCodes.NOT_FOUND, "Unknown group " + groupId);
+      }
+      return completeOK(events.second(), EventStreamMarshalling.toEventStream());
+    });
+  }
+
+  public Route iotRoutes() {
+    return pathPrefix("iot", () ->
+        concat(
+            path("readings", () ->
+                post(() ->
+                    extractRequestEntity(entity ->
+                        handleExceptions(INGEST_EXCEPTIONS, () ->
+                            onSuccess(
+                                entity.withoutSizeLimit().getDataBytes().via(ingest()).runWith(Sink.head(), system),
+                                result -> complete(StatusCodes.OK, result, Jackson.marshaller(objectMapper))
+                            )
+                        )
+                    )
+                )
+            ),
+            pathPrefix("groups", () ->
+                pathPrefix(PathMatchers.segment(), (String groupId) ->
+                    concat(
+                        pathPrefix("temperatures", () ->
+                            concat(
+                                pathEnd(() ->
+                                    get(() ->
+                                        onSuccess(getTemperatures(groupId), response ->
+                                            complete(StatusCodes.OK, toView(response), Jackson.marshaller(objectMapper))
+                                        )
+                                    )
+                                ),
+                                path("events", () ->
+                                    get(() -> temperatureEvents(groupId))
+                                )
+                            )
+                        ),
+                        pathPrefix("devices", () ->
+                            concat(
+                                pathEnd(() ->
+                                    get(() ->
+                                        onSuccess(getDevices(groupId), reply ->
+                                            complete(StatusCodes.OK, new DeviceIds(new TreeSet<>(reply.ids())),
+                                                Jackson.marshaller(objectMapper))
+                                        )
+                                    )
+                                ),
+                                pathPrefix(PathMatchers.segment(), (String deviceId) ->
+                                    concat(
+                                        pathEnd(() ->
+                                            post(() ->
+                                                onSuccess(trackDevice(groupId, deviceId), registered ->
+                                                    complete(StatusCodes.CREATED, new DeviceTracked(groupId, deviceId),
+                                                        Jackson.marshaller(objectMapper))
+                                                )
+                                            )
+                                        ),
+                                        path("temperature", () ->
+                                            post(() ->
+                                                entity(Jackson.unmarshaller(objectMapper, Reading.class), reading ->
+                                                    onSuccess(recordTemperature(groupId, deviceId, reading.value()),
+                                                        recorded -> recorded
+                                                            .map(r -> complete(StatusCodes.OK,
+                                                                new ReadingRecorded(r.requestId()),
+                                                                Jackson.marshaller(objectMapper)))
+                                                            .orElseGet(() -> complete(StatusCodes.NOT_FOUND,
+                                                                "Unknown device " + deviceId))
+                                                    )
+                                                )
+                                            )
+                                        )
+                                    )
+                                )
+                            )
+                        )
+                    )
+                )
+            )
+        )
+    );
+  }
+}
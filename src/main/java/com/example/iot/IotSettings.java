@@ -0,0 +1,52 @@
+package com.example.iot;
+
+import com.typesafe.config.Config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+public record IotSettings(Duration queryTimeout, Duration batchTimeout, Duration fleetQueryTimeout,
+                          int managerPartitions,
+                          boolean snapshotEnabled, Duration snapshotMaxStaleness,
+                          boolean passivationEnabled, Duration passivationIdleTimeout,
+                          boolean rollupsEnabled, Duration rollupMinuteRetention, Duration rollupHourRetention,
+                          boolean persistenceEnabled, Path persistenceDirectory,
+                          int persistenceSegmentSize, Duration persistenceFlushInterval) {
+
+  public static IotSettings create(Config config) {
+    Config iot = config.getConfig("iot");
+    Duration queryTimeout = iot.getDuration("group.query-timeout");
+    return new IotSettings(
+        queryTimeout,
+        batchTimeout(queryTimeout, iot.getDuration("http.ask-timeout")),
+        iot.getDuration("manager.fleet-query-timeout"),
+        managerPartitions(iot.getInt("manager.partitions")),
+        iot.getBoolean("group.snapshot.enabled"),
+        iot.getDuration("group.snapshot.max-staleness"),
+        iot.getBoolean("group.passivation.enabled"),
+        iot.getDuration("group.passivation.idle-timeout"),
+        iot.getBoolean("group.rollups.enabled"),
+        iot.getDuration("group.rollups.minute-retention"),
+        iot.getDuration("group.rollups.hour-retention"),
+        iot.getBoolean("persistence.enabled"),
+        Path.of(iot.getString("persistence.directory")),
+        Math.toIntExact(iot.getBytes("persistence.segment-size")),
+        iot.getDuration("persistence.flush-interval"));
+  }
+
+  /**
+   * How long a batch spread over the partitions waits for them. Every partition answers by the query
+   * timeout itself, so this only needs to be a little longer, but still shorter than the HTTP ask that
+   * waits for the batch, or that ask fails before the partial answer arrives.
+   */
+  private static Duration batchTimeout(Duration queryTimeout, Duration askTimeout) {
+    if (askTimeout.compareTo(queryTimeout) > 0) {
+      return queryTimeout.plus(askTimeout.minus(queryTimeout).dividedBy(2));
+    }
+    return askTimeout.multipliedBy(9).dividedBy(10);
+  }
+
+  private static int managerPartitions(int configured) {
+    return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+  }
+}
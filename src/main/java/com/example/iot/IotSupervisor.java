@@ -1,11 +1,24 @@
 package com.example.iot;
 
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.server.Route;
+import com.example.metrics.MetricsRoutes;
+import com.example.trace.TraceRoutes;
+import com.typesafe.config.Config;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletionStage;
+
+import static akka.http.javadsl.server.Directives.concat;
 
 public class IotSupervisor extends AbstractBehavior<Void> {
 
@@ -15,9 +28,35 @@ public class IotSupervisor extends AbstractBehavior<Void> {
 
   private IotSupervisor(ActorContext<Void> context) {
     super(context);
+    ActorRef<DeviceManager.Command> deviceManager =
+        context.spawn(PartitionedDeviceManager.create(), "device-manager");
+    startHttpServer(
+        concat(
+            new IotRoutes(context.getSystem(), deviceManager).iotRoutes(),
+            new MetricsRoutes().metricsRoutes(),
+            new TraceRoutes().traceRoutes()),
+        context.getSystem());
     context.getLog().info("IoT Application started");
   }
 
+  private static void startHttpServer(Route route, ActorSystem<?> system) {
+    Config http = system.settings().config().getConfig("iot.http");
+    CompletionStage<ServerBinding> futureBinding =
+        Http.get(system).newServerAt(http.getString("interface"), http.getInt("port")).bind(route);
+
+    futureBinding.whenComplete((binding, exception) -> {
+      if (binding != null) {
+        InetSocketAddress address = binding.localAddress();
+        system.log().info("IoT server online at http://{}:{}/",
+            address.getHostString(),
+            address.getPort());
+      } else {
+        system.log().error("Failed to bind IoT HTTP endpoint, terminating system", exception);
+        system.terminate();
+      }
+    });
+  }
+
   // No need to handle any messages
   @Override
   public Receive<Void> createReceive() {
@@ -28,4 +67,4 @@ public class IotSupervisor extends AbstractBehavior<Void> {
     getContext().getLog().info("IoT Application stopped");
     return this;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.SupervisorStrategy;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.example.iot.DeviceManager.*;
+import com.example.metrics.ActorMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Speaks the {@link DeviceManager} protocol, but spreads the groups over several DeviceManager
+ * partitions by the hash of their group id, so registrations of different groups don't queue up
+ * behind each other in one mailbox. Requests for one group go to its partition, requests that span
+ * all groups are sent to every partition and their answers are merged.
+ */
+public class PartitionedDeviceManager extends AbstractBehavior<DeviceManager.Command> {
+
+  public static Behavior<DeviceManager.Command> create() {
+    return Behaviors.setup(
+        context -> create(IotSettings.create(context.getSystem().settings().config())));
+  }
+
+  public static Behavior<DeviceManager.Command> create(IotSettings settings) {
+    return Behaviors.setup(context -> new PartitionedDeviceManager(context, settings));
+  }
+
+  private final IotSettings settings;
+  private final List<ActorRef<DeviceManager.Command>> partitions = new ArrayList<>();
+
+  private PartitionedDeviceManager(ActorContext<DeviceManager.Command> context, IotSettings settings) {
+    super(context);
+    this.settings = settings;
+    int count = settings.managerPartitions();
+    for (int i = 0; i < count; i++) {
+      partitions.add(context.spawn(
+          Behaviors.supervise(ActorMetrics.instrument("device-manager", DeviceManager.create(settings, i, count)))
+              .onFailure(SupervisorStrategy.restart()),
+          "manager-" + i,
+          ActorMetrics.mailbox("device-manager")));
+    }
+    context.getLog().info("PartitionedDeviceManager started with {} partitions", count);
+  }
+
+  private ActorRef<DeviceManager.Command> partitionOf(String groupId) {
+    return partitions.get(DeviceManager.partitionOf(groupId, partitions.size()));
+  }
+
+  private PartitionedDeviceManager onTrackDevice(RequestTrackDevice r) {
+    partitionOf(r.groupId()).tell(r);
+    return this;
+  }
+
+  private PartitionedDeviceManager onRequestDeviceList(RequestDeviceList r) {
+    partitionOf(r.groupId()).tell(r);
+    return this;
+  }
+
+  private PartitionedDeviceManager onForwardToDevice(ForwardToDevice f) {
+    partitionOf(f.groupId()).tell(f);
+    return this;
+  }
+
+  private PartitionedDeviceManager onSubscribeTemperatureChanges(SubscribeTemperatureChanges s) {
+    partitionOf(s.groupId()).tell(s);
+    return this;
+  }
+
+  private PartitionedDeviceManager onAlertCommand(String groupId, DeviceManager.Command command) {
+    partitionOf(groupId).tell(command);
+    return this;
+  }
+
+  private PartitionedDeviceManager onAllTemperatures(RequestAllTemperatures r) {
+    partitionOf(r.groupId()).tell(r);
+    return this;
+  }
+
+  private PartitionedDeviceManager onRollups(RequestRollups r) {
+    partitionOf(r.groupId()).tell(r);
+    return this;
+  }
+
+  private PartitionedDeviceManager onTemperatureStream(RequestTemperatureStream r) {
+    partitionOf(r.groupId()).tell(r);
+    return this;
+  }
+
+  private PartitionedDeviceManager onDeviceGroupList(RequestDeviceGroupList r) {
+    getContext().spawnAnonymous(Aggregator.create(
+        ReplyDeviceGroupList.class,
+        replyTo -> partitions.forEach(partition -> partition.tell(new RequestDeviceGroupList(r.requestId(), replyTo))),
+        partitions.size(),
+        r.replyTo(),
+        replies -> {
+          Set<String> ids = new HashSet<>();
+          replies.forEach(reply -> ids.addAll(reply.ids()));
+          return new ReplyDeviceGroupList(r.requestId(), ids);
+        },
+        settings.queryTimeout()));
+    return this;
+  }
+
+  private PartitionedDeviceManager onRecordTemperatureBatch(RecordTemperatureBatch r) {
+    if (r.samples().isEmpty()) {
+      r.replyTo().tell(new TemperatureBatchRecorded(r.requestId(), 0, 0));
+      return this;
+    }
+    Map<Integer, List<TemperatureSample>> samplesByPartition = new HashMap<>();
+    for (TemperatureSample sample : r.samples()) {
+      samplesByPartition
+          .computeIfAbsent(DeviceManager.partitionOf(sample.groupId(), partitions.size()), k -> new ArrayList<>())
+          .add(sample);
+    }
+    int total = r.samples().size();
+    // samples of a partition that did not answer in time count as rejected
+    getContext().spawnAnonymous(Aggregator.create(
+        TemperatureBatchRecorded.class,
+        replyTo -> samplesByPartition.forEach((partition, samples) ->
+            partitions.get(partition).tell(new RecordTemperatureBatch(r.requestId(), samples, replyTo))),
+        samplesByPartition.size(),
+        r.replyTo(),
+        replies -> {
+          int accepted = replies.stream().mapToInt(TemperatureBatchRecorded::accepted).sum();
+          return new TemperatureBatchRecorded(r.requestId(), accepted, total - accepted);
+        },
+        settings.batchTimeout()));
+    return this;
+  }
+
+  private PartitionedDeviceManager onFleetTemperatures(RequestFleetTemperatures r) {
+    // every partition answers by its own deadline, this one only covers a partition that is gone
+    getContext().spawnAnonymous(Aggregator.create(
+        RespondFleetTemperatures.class,
+        replyTo -> partitions.forEach(partition -> partition.tell(new RequestFleetTemperatures(r.requestId(), replyTo))),
+        partitions.size(),
+        r.replyTo(),
+        replies -> {
+          Map<String, Map<String, TemperatureReading>> temperatures = new HashMap<>();
+          Map<String, GroupQueryStatus> status = new HashMap<>();
+          for (RespondFleetTemperatures reply : replies) {
+            temperatures.putAll(reply.temperatures());
+            status.putAll(reply.status());
+          }
+          return new RespondFleetTemperatures(r.requestId(), temperatures, status);
+        },
+        settings.fleetQueryTimeout().multipliedBy(2)));
+    return this;
+  }
+
+  @Override
+  public Receive<DeviceManager.Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(RequestTrackDevice.class, this::onTrackDevice)
+        .onMessage(RequestDeviceList.class, this::onRequestDeviceList)
+        .onMessage(ForwardToDevice.class, this::onForwardToDevice)
+        .onMessage(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+        .onMessage(SubscribeTemperatureChanges.class, this::onSubscribeTemperatureChanges)
+        .onMessage(AddAlertRule.class, a -> onAlertCommand(a.groupId(), a))
+        .onMessage(RemoveAlertRule.class, r -> onAlertCommand(r.groupId(), r))
+        .onMessage(SubscribeAlerts.class, s -> onAlertCommand(s.groupId(), s))
+        .onMessage(RequestAllTemperatures.class, this::onAllTemperatures)
+        .onMessage(RequestRollups.class, this::onRollups)
+        .onMessage(RequestTemperatureStream.class, this::onTemperatureStream)
+        .onMessage(RequestFleetTemperatures.class, this::onFleetTemperatures)
+        .onMessage(RequestDeviceGroupList.class, this::onDeviceGroupList)
+        .onSignal(PostStop.class, signal -> onPostStop())
+        .build();
+  }
+
+  private PartitionedDeviceManager onPostStop() {
+    getContext().getLog().info("PartitionedDeviceManager stopped");
+    return this;
+  }
+}
@@ -0,0 +1,79 @@
+package com.example.iot;
+
+/**
+ * Fixed-capacity ring buffer of timestamped readings kept in primitive arrays, so recording
+ * and aggregating never box a value. Once full, the oldest reading is overwritten.
+ */
+final class ReadingHistory {
+
+  private final long[] timestamps;
+  private final double[] values;
+  private int next;
+  private int size;
+
+  ReadingHistory(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+    }
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  void record(long timestamp, double value) {
+    timestamps[next] = timestamp;
+    values[next] = value;
+    next = (next + 1) % values.length;
+    if (size < values.length) {
+      size++;
+    }
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  double lastValue() {
+    if (size == 0) {
+      throw new IllegalStateException("no readings recorded");
+    }
+    return values[(next - 1 + values.length) % values.length];
+  }
+
+  long lastTimestamp() {
+    if (size == 0) {
+      throw new IllegalStateException("no readings recorded");
+    }
+    return timestamps[(next - 1 + values.length) % values.length];
+  }
+
+  /**
+   * Aggregates the readings recorded at or after {@code since}, walking back from the newest one.
+   */
+  Device.TemperatureStats stats(long since) {
+    int count = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0.0;
+    for (int i = 0, index = next - 1; i < size; i++, index--) {
+      if (index < 0) {
+        index = values.length - 1;
+      }
+      if (timestamps[index] < since) {
+        break;
+      }
+      double value = values[index];
+      count++;
+      sum += value;
+      if (value < min) min = value;
+      if (value > max) max = value;
+    }
+    if (count == 0) {
+      return Device.TemperatureStats.EMPTY;
+    }
+    return new Device.TemperatureStats(count, min, max, sum / count);
+  }
+}
@@ -0,0 +1,191 @@
+package com.example.iot;
+
+import com.example.iot.DeviceManager.Rollup;
+import com.example.iot.DeviceManager.RollupResolution;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Minute and hour rollups of the values recorded by the devices of a group, kept off the heap.
+ * <p>
+ * Each device slot of the group's {@link DeviceTable} owns a ring of buckets per resolution covering the
+ * retention, so a recorded value only touches one bucket of each resolution and no object is kept per
+ * reading or per bucket. A ring is split into chunks of {@value #CHUNK_BUCKETS} buckets, each a direct
+ * buffer with the columns bucket start, min, max, sum and count, which are only allocated once a value
+ * falls into them, so a device takes memory for the time it actually recorded values rather than for the
+ * whole retention. A ring entry whose bucket start doesn't match is stale and reused.
+ * <p>
+ * If there is no direct memory left for a new chunk, the value is not rolled up and {@link #record}
+ * says so, everything already rolled up stays available.
+ */
+final class RollupStore {
+
+  static final int CHUNK_BUCKETS = 60;
+
+  private static final long NO_BUCKET = -1L;
+  private static final int START = 0;
+  private static final int MIN = 1;
+  private static final int MAX = 2;
+  private static final int SUM = 3;
+  private static final int COUNT = 4;
+  private static final int COLUMNS = 5;
+
+  private final Buckets minutes;
+  private final Buckets hours;
+
+  RollupStore(Duration minuteRetention, Duration hourRetention) {
+    minutes = new Buckets(Duration.ofMinutes(1).toMillis(), minuteRetention);
+    hours = new Buckets(Duration.ofHours(1).toMillis(), hourRetention);
+  }
+
+  /**
+   * False if the value could not be rolled up for lack of direct memory.
+   */
+  boolean record(int slot, double value, long timestamp) {
+    boolean recorded = minutes.record(slot, value, timestamp);
+    return hours.record(slot, value, timestamp) && recorded;
+  }
+
+  /**
+   * Forgets the device in the slot, which is about to be reused for another one.
+   */
+  void clear(int slot) {
+    minutes.clear(slot);
+    hours.clear(slot);
+  }
+
+  /**
+   * The non-empty buckets of the slot that start in [from, to), oldest first.
+   */
+  Rollup query(int slot, RollupResolution resolution, long from, long to) {
+    return (resolution == RollupResolution.MINUTE ? minutes : hours).query(slot, from, to);
+  }
+
+  private static int offset(int column, int bucket) {
+    return (column * CHUNK_BUCKETS + bucket) * Long.BYTES;
+  }
+
+  private static final class Buckets {
+    private final long width;
+    private final int perDevice;
+    private final int chunksPerDevice;
+    // per slot the chunks of its ring, null until a value falls into them
+    private ByteBuffer[][] chunks = new ByteBuffer[16][];
+
+    Buckets(long width, Duration retention) {
+      this.width = width;
+      this.perDevice = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, retention.toMillis() / width));
+      this.chunksPerDevice = (perDevice + CHUNK_BUCKETS - 1) / CHUNK_BUCKETS;
+    }
+
+    private int ringIndex(long bucket) {
+      return (int) Math.floorMod(bucket, (long) perDevice);
+    }
+
+    private ByteBuffer chunk(int slot, int ringIndex) {
+      ByteBuffer[] ring = slot < chunks.length ? chunks[slot] : null;
+      return ring == null ? null : ring[ringIndex / CHUNK_BUCKETS];
+    }
+
+    private ByteBuffer allocateChunk(int slot, int ringIndex) {
+      if (slot >= chunks.length) {
+        chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, slot + 1));
+      }
+      if (chunks[slot] == null) {
+        chunks[slot] = new ByteBuffer[chunksPerDevice];
+      }
+      ByteBuffer chunk;
+      try {
+        chunk = ByteBuffer.allocateDirect(COLUMNS * CHUNK_BUCKETS * Long.BYTES).order(ByteOrder.nativeOrder());
+      } catch (OutOfMemoryError e) {
+        // only the direct memory ran out, the heap is fine
+        return null;
+      }
+      for (int i = 0; i < CHUNK_BUCKETS; i++) {
+        chunk.putLong(offset(START, i), NO_BUCKET);
+      }
+      chunks[slot][ringIndex / CHUNK_BUCKETS] = chunk;
+      return chunk;
+    }
+
+    boolean record(int slot, double value, long timestamp) {
+      long bucket = Math.floorDiv(timestamp, width);
+      int ringIndex = ringIndex(bucket);
+      ByteBuffer chunk = chunk(slot, ringIndex);
+      if (chunk == null && (chunk = allocateChunk(slot, ringIndex)) == null) {
+        return false;
+      }
+      int i = ringIndex % CHUNK_BUCKETS;
+      if (chunk.getLong(offset(START, i)) != bucket) {
+        chunk.putLong(offset(START, i), bucket);
+        chunk.putDouble(offset(MIN, i), value);
+        chunk.putDouble(offset(MAX, i), value);
+        chunk.putDouble(offset(SUM, i), value);
+        chunk.putLong(offset(COUNT, i), 1L);
+      } else {
+        chunk.putDouble(offset(MIN, i), Math.min(chunk.getDouble(offset(MIN, i)), value));
+        chunk.putDouble(offset(MAX, i), Math.max(chunk.getDouble(offset(MAX, i)), value));
+        chunk.putDouble(offset(SUM, i), chunk.getDouble(offset(SUM, i)) + value);
+        chunk.putLong(offset(COUNT, i), chunk.getLong(offset(COUNT, i)) + 1L);
+      }
+      return true;
+    }
+
+    void clear(int slot) {
+      if (slot < chunks.length) {
+        chunks[slot] = null;
+      }
+    }
+
+    // the chunk holding the bucket if it is in there, null otherwise
+    private ByteBuffer holding(int slot, long bucket) {
+      int ringIndex = ringIndex(bucket);
+      ByteBuffer chunk = chunk(slot, ringIndex);
+      if (chunk == null || chunk.getLong(offset(START, ringIndex % CHUNK_BUCKETS)) != bucket) {
+        return null;
+      }
+      return chunk;
+    }
+
+    Rollup query(int slot, long from, long to) {
+      if (slot >= chunks.length || chunks[slot] == null || to <= from) {
+        return Rollup.EMPTY;
+      }
+      long last = Math.floorDiv(to - 1, width);
+      // a ring holds no more than perDevice buckets, anything older has been overwritten
+      long first = Math.max(Math.floorDiv(from, width), last - perDevice + 1);
+      if (Math.floorMod(from, width) != 0 && first == Math.floorDiv(from, width)) {
+        first++;
+      }
+
+      int found = 0;
+      for (long bucket = first; bucket <= last; bucket++) {
+        if (holding(slot, bucket) != null) {
+          found++;
+        }
+      }
+      long[] bucketStarts = new long[found];
+      double[] min = new double[found];
+      double[] max = new double[found];
+      double[] sum = new double[found];
+      long[] count = new long[found];
+      int n = 0;
+      for (long bucket = first; bucket <= last && n < found; bucket++) {
+        ByteBuffer chunk = holding(slot, bucket);
+        if (chunk != null) {
+          int i = ringIndex(bucket) % CHUNK_BUCKETS;
+          bucketStarts[n] = bucket * width;
+          min[n] = chunk.getDouble(offset(MIN, i));
+          max[n] = chunk.getDouble(offset(MAX, i));
+          sum[n] = chunk.getDouble(offset(SUM, i));
+          count[n] = chunk.getLong(offset(COUNT, i));
+          n++;
+        }
+      }
+      return new Rollup(bucketStarts, min, max, sum, count);
+    }
+  }
+}
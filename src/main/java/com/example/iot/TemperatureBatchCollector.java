@@ -0,0 +1,113 @@
+package com.example.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.*;
+import com.example.iot.DeviceManager.*;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TemperatureBatchCollector extends AbstractBehavior<TemperatureBatchCollector.Command> {
+
+  public interface Command {}
+
+  private enum CollectionTimeout implements Command {INSTANCE}
+
+  record WrappedGroupTemperaturesRecorded(GroupTemperaturesRecorded response) implements Command {}
+
+  private record GroupTerminated(String groupId) implements Command {}
+
+  public static Behavior<Command> create(
+      Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+      Map<String, List<TemperatureSample>> samplesByGroup,
+      long requestId,
+      int rejected,
+      ActorRef<TemperatureBatchRecorded> requester,
+      Duration timeout) {
+    return Behaviors.setup(
+        context -> Behaviors.withTimers(
+            timers -> new TemperatureBatchCollector(
+                groupIdToActor, samplesByGroup, requestId, rejected, requester, timeout, context, timers)
+        )
+    );
+  }
+
+  private final long requestId;
+  private final ActorRef<TemperatureBatchRecorded> requester;
+
+  private final Map<String, Integer> stillWaiting = new HashMap<>();
+  private int accepted;
+  private int rejected;
+
+  private TemperatureBatchCollector(
+      Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor,
+      Map<String, List<TemperatureSample>> samplesByGroup,
+      long requestId,
+      int rejected,
+      ActorRef<TemperatureBatchRecorded> requester,
+      Duration timeout,
+      ActorContext<Command> context,
+      TimerScheduler<Command> timers) {
+    super(context);
+    this.requestId = requestId;
+    this.rejected = rejected;
+    this.requester = requester;
+
+    timers.startSingleTimer(CollectionTimeout.INSTANCE, timeout);
+
+    ActorRef<GroupTemperaturesRecorded> recordedAdapter =
+        context.messageAdapter(GroupTemperaturesRecorded.class, WrappedGroupTemperaturesRecorded::new);
+
+    for (Map.Entry<String, ActorRef<DeviceGroup.Command>> entry : groupIdToActor.entrySet()) {
+      List<TemperatureSample> samples = samplesByGroup.get(entry.getKey());
+      context.watchWith(entry.getValue(), new GroupTerminated(entry.getKey()));
+      entry.getValue().tell(new RecordGroupTemperatures(requestId, entry.getKey(), samples, recordedAdapter));
+      stillWaiting.put(entry.getKey(), samples.size());
+    }
+  }
+
+  @Override
+  public Receive<Command> createReceive() {
+    return newReceiveBuilder()
+        .onMessage(WrappedGroupTemperaturesRecorded.class, this::onGroupTemperaturesRecorded)
+        .onMessage(GroupTerminated.class, this::onGroupTerminated)
+        .onMessage(CollectionTimeout.class, this::onCollectionTimeout)
+        .build();
+  }
+
+  private Behavior<Command> onGroupTemperaturesRecorded(WrappedGroupTemperaturesRecorded r) {
+    if (stillWaiting.remove(r.response.groupId()) != null) {
+      accepted += r.response.accepted();
+      rejected += r.response.rejected();
+    }
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> onGroupTerminated(GroupTerminated terminated) {
+    Integer samples = stillWaiting.remove(terminated.groupId());
+    if (samples != null) {
+      rejected += samples;
+    }
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> onCollectionTimeout(CollectionTimeout timeout) {
+    for (int samples : stillWaiting.values()) {
+      rejected += samples;
+    }
+    stillWaiting.clear();
+    return respondWhenAllCollected();
+  }
+
+  private Behavior<Command> respondWhenAllCollected() {
+    if (stillWaiting.isEmpty()) {
+      requester.tell(new TemperatureBatchRecorded(requestId, accepted, rejected));
+      return Behaviors.stopped();
+    } else {
+      return this;
+    }
+  }
+}
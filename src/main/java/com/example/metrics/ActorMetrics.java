@@ -0,0 +1,125 @@
+package com.example.metrics;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message statistics per actor type, shared by all actor systems of the JVM.
+ * <p>
+ * An actor is counted by spawning its behavior wrapped with {@link #instrument(String, Behavior)}, which
+ * counts the messages and the time spent handling them, and with the props of {@link #mailbox(String)},
+ * which count what is waiting in the mailboxes. All counters are {@link LongAdder}s, so actors of the
+ * same type on different threads don't contend on them; they are only summed up when scraped.
+ */
+public final class ActorMetrics {
+
+  // upper bounds of the handler time buckets, with their label in seconds
+  private static final long[] BUCKET_NANOS = {
+      1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L};
+  private static final String[] BUCKET_LABELS = {"1e-06", "1e-05", "0.0001", "0.001", "0.01", "0.1", "1"};
+
+  private static final Map<String, ActorTypeMetrics> metricsByType = new ConcurrentHashMap<>();
+
+  private ActorMetrics() {}
+
+  /**
+   * The counters of one actor type.
+   */
+  static final class ActorTypeMetrics {
+    final LongAdder messages = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder handlerNanos = new LongAdder();
+    // not cumulative, one more than there are bounds for the slower ones
+    final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+    final LongAdder enqueued = new LongAdder();
+    final LongAdder dequeued = new LongAdder();
+
+    private ActorTypeMetrics() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void handled(long nanos) {
+      messages.increment();
+      handlerNanos.add(nanos);
+      int bucket = 0;
+      while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+    }
+  }
+
+  static ActorTypeMetrics forType(String actorType) {
+    return metricsByType.computeIfAbsent(actorType, type -> new ActorTypeMetrics());
+  }
+
+  /**
+   * Counts the messages of the behavior, and the time its handlers take, as the given actor type.
+   */
+  public static <T> Behavior<T> instrument(String actorType, Behavior<T> behavior) {
+    ActorTypeMetrics metrics = forType(actorType);
+    return Behaviors.intercept(() -> new MetricsInterceptor<>(metrics), behavior);
+  }
+
+  /**
+   * Props with a mailbox that counts its messages as the given actor type, which must have a mailbox
+   * configured under {@code metrics.mailboxes}.
+   */
+  public static Props mailbox(String actorType) {
+    return MailboxSelector.fromConfig("metrics.mailboxes." + actorType);
+  }
+
+  /**
+   * All counters in the Prometheus text exposition format.
+   */
+  public static String scrape() {
+    Map<String, ActorTypeMetrics> types = new TreeMap<>(metricsByType);
+    StringBuilder out = new StringBuilder();
+
+    header(out, "akka_actor_messages_total", "counter", "Messages handled per actor type.");
+    types.forEach((type, metrics) -> sample(out, "akka_actor_messages_total", type, metrics.messages.sum()));
+
+    header(out, "akka_actor_failures_total", "counter", "Messages whose handler threw per actor type.");
+    types.forEach((type, metrics) -> sample(out, "akka_actor_failures_total", type, metrics.failures.sum()));
+
+    header(out, "akka_actor_handler_seconds", "histogram", "Time spent in message handlers per actor type.");
+    types.forEach((type, metrics) -> {
+      long cumulative = 0;
+      for (int i = 0; i < metrics.buckets.length; i++) {
+        cumulative += metrics.buckets[i].sum();
+        String le = i < BUCKET_LABELS.length ? BUCKET_LABELS[i] : "+Inf";
+        out.append("akka_actor_handler_seconds_bucket{actor=\"").append(type)
+            .append("\",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+      }
+      out.append("akka_actor_handler_seconds_sum{actor=\"").append(type).append("\"} ")
+          .append(metrics.handlerNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+      out.append("akka_actor_handler_seconds_count{actor=\"").append(type).append("\"} ")
+          .append(cumulative).append('\n');
+    });
+
+    header(out, "akka_actor_mailbox_size", "gauge", "Messages waiting in the mailboxes per actor type.");
+    types.forEach((type, metrics) -> sample(out, "akka_actor_mailbox_size", type,
+        Math.max(metrics.enqueued.sum() - metrics.dequeued.sum(), 0L)));
+
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String actorType, long value) {
+    out.append(name).append("{actor=\"").append(actorType).append("\"} ").append(value).append('\n');
+  }
+}
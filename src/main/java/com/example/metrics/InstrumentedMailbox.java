@@ -0,0 +1,75 @@
+package com.example.metrics;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An unbounded mailbox that counts the messages put into and taken out of it for the actor type named
+ * by {@code actor-type} in its configuration, which gives the number of waiting messages per type.
+ */
+public class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.InstrumentedMessageQueue> {
+
+  private final ActorMetrics.ActorTypeMetrics metrics;
+
+  // created reflectively by the mailbox lookup
+  public InstrumentedMailbox(ActorSystem.Settings settings, Config config) {
+    metrics = ActorMetrics.forType(config.getString("actor-type"));
+  }
+
+  @Override
+  public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+    return new InstrumentedMessageQueue(metrics);
+  }
+
+  public static class InstrumentedMessageQueue implements MessageQueue {
+
+    private final Queue<Envelope> queue = new ConcurrentLinkedQueue<>();
+    private final ActorMetrics.ActorTypeMetrics metrics;
+
+    InstrumentedMessageQueue(ActorMetrics.ActorTypeMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public void enqueue(ActorRef receiver, Envelope handle) {
+      queue.offer(handle);
+      metrics.enqueued.increment();
+    }
+
+    @Override
+    public Envelope dequeue() {
+      Envelope envelope = queue.poll();
+      if (envelope != null) {
+        metrics.dequeued.increment();
+      }
+      return envelope;
+    }
+
+    @Override
+    public int numberOfMessages() {
+      return queue.size();
+    }
+
+    @Override
+    public boolean hasMessages() {
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+      Envelope envelope;
+      while ((envelope = dequeue()) != null) {
+        deadLetters.enqueue(owner, envelope);
+      }
+    }
+  }
+}
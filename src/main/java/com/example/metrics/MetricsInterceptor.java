@@ -0,0 +1,32 @@
+package com.example.metrics;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.BehaviorInterceptor;
+import akka.actor.typed.TypedActorContext;
+
+/**
+ * Times every message the intercepted behavior handles, signals pass through untouched.
+ */
+final class MetricsInterceptor<T> extends BehaviorInterceptor<T, T> {
+
+  private final ActorMetrics.ActorTypeMetrics metrics;
+
+  @SuppressWarnings("unchecked")
+  MetricsInterceptor(ActorMetrics.ActorTypeMetrics metrics) {
+    super((Class<T>) (Class<?>) Object.class);
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Behavior<T> aroundReceive(TypedActorContext<T> ctx, T msg, ReceiveTarget<T> target) {
+    long start = System.nanoTime();
+    try {
+      return target.apply(ctx, msg);
+    } catch (RuntimeException | Error e) {
+      metrics.failures.increment();
+      throw e;
+    } finally {
+      metrics.handled(System.nanoTime() - start);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.example.metrics;
+
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.Route;
+
+import static akka.http.javadsl.server.Directives.*;
+
+/**
+ * {@code GET /metrics} in the Prometheus text exposition format, declared with its version in the content
+ * type. It is rendered from the counters on every scrape.
+ */
+public class MetricsRoutes {
+
+  static final ContentType.NonBinary PROMETHEUS_TEXT =
+      (ContentType.NonBinary) akka.http.scaladsl.model.ContentType$.MODULE$
+          .parse("text/plain; version=0.0.4; charset=utf-8")
+          .toOption()
+          .get();
+
+  public Route metricsRoutes() {
+    return path("metrics", () ->
+        get(() ->
+            complete(HttpEntities.create(PROMETHEUS_TEXT, ActorMetrics.scrape()))
+        )
+    );
+  }
+}
@@ -0,0 +1,125 @@
+package com.example.trace;
+
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent events of every thread in memory, as a cheap replacement for logging on hot paths.
+ * <p>
+ * Every thread writes into its own ring buffer of longs, so recording an event takes no lock, allocates
+ * nothing and formats nothing: it is four array stores between two ordered stores of the write position.
+ * Only {@link #dump()} turns the events into text, for all threads ordered by time. A buffer keeps the last
+ * {@value #EVENTS_PER_THREAD} events of its thread, older ones are overwritten. The buffer of a thread that
+ * has died is dumped one last time and then dropped.
+ */
+public final class EventTrace {
+
+  static final int EVENTS_PER_THREAD = 8192;
+
+  // nanoTime, kind, a, b
+  private static final int SLOTS_PER_EVENT = 4;
+
+  private static final List<Buffer> buffers = new CopyOnWriteArrayList<>();
+
+  private static final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(() -> {
+    Buffer created = new Buffer(Thread.currentThread());
+    buffers.add(created);
+    return created;
+  });
+
+  private EventTrace() {}
+
+  public static void record(TraceEvent kind, long a, long b) {
+    buffer.get().record(kind.ordinal(), a, b);
+  }
+
+  public static void record(TraceEvent kind, long a) {
+    buffer.get().record(kind.ordinal(), a, 0L);
+  }
+
+  /**
+   * One event as it is dumped.
+   */
+  public record Event(long nanoTime, String thread, TraceEvent kind, long a, long b) {
+    @Override
+    public String toString() {
+      return nanoTime + " [" + thread + "] " + kind + " " + kind.describe(a, b);
+    }
+  }
+
+  /**
+   * The events of all threads ordered by time. Events written while the dump runs may be missing.
+   */
+  public static List<Event> events() {
+    List<Event> events = new ArrayList<>();
+    for (Buffer threadBuffer : buffers) {
+      threadBuffer.copyTo(events);
+      if (!threadBuffer.ownerAlive()) {
+        buffers.remove(threadBuffer);
+      }
+    }
+    events.sort(Comparator.comparingLong(Event::nanoTime));
+    return events;
+  }
+
+  /**
+   * The events of all threads ordered by time, one per line.
+   */
+  public static String dump() {
+    StringBuilder out = new StringBuilder();
+    for (Event event : events()) {
+      out.append(event).append('\n');
+    }
+    return out.toString();
+  }
+
+  private static final class Buffer {
+    private final String thread;
+    // weak, so a buffer doesn't keep its thread around until the next dump
+    private final WeakReference<Thread> owner;
+    private final long[] slots = new long[EVENTS_PER_THREAD * SLOTS_PER_EVENT];
+    // events started and events completely written so far, only ever written by the owning thread
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    Buffer(Thread owner) {
+      this.thread = owner.getName();
+      this.owner = new WeakReference<>(owner);
+    }
+
+    boolean ownerAlive() {
+      Thread ownerThread = owner.get();
+      return ownerThread != null && ownerThread.isAlive();
+    }
+
+    void record(int kind, long a, long b) {
+      long n = written.get();
+      started.lazySet(n + 1);
+      // the slots must not be overwritten before a copying thread can see that they are
+      VarHandle.storeStoreFence();
+      int base = (int) (n % EVENTS_PER_THREAD) * SLOTS_PER_EVENT;
+      slots[base] = System.nanoTime();
+      slots[base + 1] = kind;
+      slots[base + 2] = a;
+      slots[base + 3] = b;
+      written.lazySet(n + 1);
+    }
+
+    void copyTo(List<Event> events) {
+      long end = written.get();
+      long[] copy = slots.clone();
+      VarHandle.loadLoadFence();
+      // whatever the owner started to overwrite while copying is dropped, the event in progress included
+      long safeStart = Math.max(0L, Math.max(end, started.get()) - EVENTS_PER_THREAD);
+      for (long n = safeStart; n < end; n++) {
+        int base = (int) (n % EVENTS_PER_THREAD) * SLOTS_PER_EVENT;
+        events.add(new Event(copy[base], thread, TraceEvent.of(copy[base + 1]), copy[base + 2], copy[base + 3]));
+      }
+    }
+  }
+}
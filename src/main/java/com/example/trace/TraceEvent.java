@@ -0,0 +1,48 @@
+package com.example.trace;
+
+/**
+ * The kinds of events in the {@link EventTrace}, each with two long arguments and a way to render them.
+ * Strings are traced by their hash code, which is cached in the string and so costs nothing to get.
+ */
+public enum TraceEvent {
+  /** The request id and the raw bits of the value. */
+  DEVICE_TEMPERATURE_RECORDED {
+    @Override
+    String describe(long a, long b) {
+      return "requestId=" + a + " value=" + Double.longBitsToDouble(b);
+    }
+  },
+  /** The hash codes of the group and the device id. */
+  DEVICE_TRACKED {
+    @Override
+    String describe(long a, long b) {
+      return "group#=" + hash(a) + " device#=" + hash(b);
+    }
+  },
+  /** The hash code of whom was greeted. */
+  GREETED {
+    @Override
+    String describe(long a, long b) {
+      return "whom#=" + hash(a);
+    }
+  },
+  /** The number of the greeting and the hash code of whom it was for. */
+  GREETING_RECEIVED {
+    @Override
+    String describe(long a, long b) {
+      return "greeting=" + a + " whom#=" + hash(b);
+    }
+  };
+
+  private static final TraceEvent[] VALUES = values();
+
+  static TraceEvent of(long ordinal) {
+    return VALUES[(int) ordinal];
+  }
+
+  abstract String describe(long a, long b);
+
+  private static String hash(long hashCode) {
+    return String.format("%08x", (int) hashCode);
+  }
+}
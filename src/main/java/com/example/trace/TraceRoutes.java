@@ -0,0 +1,22 @@
+package com.example.trace;
+
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Route;
+
+import static akka.http.javadsl.server.Directives.*;
+
+/**
+ * {@code GET /admin/trace} dumps the {@link EventTrace} of all threads as text, one event per line.
+ */
+public class TraceRoutes {
+
+  public Route traceRoutes() {
+    return path(PathMatchers.segment("admin").slash("trace"), () ->
+        get(() ->
+            complete(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, EventTrace.dump()))
+        )
+    );
+  }
+}
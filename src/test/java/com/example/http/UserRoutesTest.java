@@ -2,14 +2,24 @@ package com.example.http;
 
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.typed.ActorRef;
+import akka.http.javadsl.model.HttpCharsets;
 import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaRange;
+import akka.http.javadsl.model.MediaRanges;
 import akka.http.javadsl.model.MediaTypes;
 import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.model.headers.EntityTag;
+import akka.http.javadsl.model.headers.IfNoneMatch;
 import akka.http.javadsl.testkit.JUnitRouteTest;
 import akka.http.javadsl.testkit.TestRoute;
 import org.junit.*;
 import org.junit.runners.MethodSorters;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class UserRoutesTest extends JUnitRouteTest {
 
@@ -63,4 +73,189 @@ public class UserRoutesTest extends JUnitRouteTest {
         .assertEntity("{\"description\":\"User Kapi deleted.\"}");
 
   }
+
+  @Test
+  public void test4PageThroughUsers() {
+    for (String name : new String[]{"Carol", "Alice", "Bob"}) {
+      appRoute.run(HttpRequest.POST("/users")
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                  "{\"name\": \"" + name + "\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+
+    appRoute.run(HttpRequest.GET("/users?limit=2"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":["
+            + "{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}],"
+            + "\"next\":\"Bob\"}");
+    appRoute.run(HttpRequest.GET("/users?limit=2&after=Bob"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":[{\"name\":\"Carol\",\"age\":42,\"countryOfResidence\":\"jp\"}]}");
+  }
+
+  @Test
+  public void test5ReadFromPublishedSnapshots() {
+    AtomicReference<UserSnapshot> published = new AtomicReference<>(UserSnapshot.EMPTY);
+    ActorRef<UserRegistry.Command> snapshotRegistry = testkit.spawn(UserRegistry.create(published));
+    TestRoute snapshotRoute = testRoute(new UserRoutes(testkit.system(), snapshotRegistry, published).userRoutes());
+
+    for (String name : new String[]{"Carol", "Alice", "Bob"}) {
+      snapshotRoute.run(HttpRequest.POST("/users")
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                  "{\"name\": \"" + name + "\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    // a change is published before the registry replies to it
+    snapshotRoute.run(HttpRequest.GET("/users/Bob"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}");
+    snapshotRoute.run(HttpRequest.GET("/users?limit=2"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":["
+            + "{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}],"
+            + "\"next\":\"Bob\"}");
+
+    snapshotRoute.run(HttpRequest.DELETE("/users/Bob"))
+        .assertStatusCode(StatusCodes.OK);
+    snapshotRoute.run(HttpRequest.GET("/users/Bob"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+    snapshotRoute.run(HttpRequest.GET("/users?limit=2&after=Alice"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":[{\"name\":\"Carol\",\"age\":42,\"countryOfResidence\":\"jp\"}]}");
+
+    testkit.stop(snapshotRegistry);
+  }
+
+  @Test
+  public void test6SpreadUsersOverShards() {
+    List<ActorRef<UserRegistry.Command>> shards = new ArrayList<>();
+    for (int shard = 0; shard < 3; shard++) {
+      shards.add(testkit.spawn(UserRegistry.create()));
+    }
+    TestRoute shardedRoute = testRoute(new UserRoutes(testkit.system(), shards, null).userRoutes());
+
+    for (String name : new String[]{"Erin", "Carol", "Alice", "Dave", "Bob"}) {
+      shardedRoute.run(HttpRequest.POST("/users")
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                  "{\"name\": \"" + name + "\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    shardedRoute.run(HttpRequest.GET("/users/Dave"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"Dave\",\"age\":42,\"countryOfResidence\":\"jp\"}");
+
+    // pages are merged across the shards in the order of the names
+    shardedRoute.run(HttpRequest.GET("/users?limit=2"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":["
+            + "{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}],"
+            + "\"next\":\"Bob\"}");
+    shardedRoute.run(HttpRequest.GET("/users?limit=2&after=Bob"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":["
+            + "{\"name\":\"Carol\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Dave\",\"age\":42,\"countryOfResidence\":\"jp\"}],"
+            + "\"next\":\"Dave\"}");
+    shardedRoute.run(HttpRequest.GET("/users?limit=2&after=Dave"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"users\":[{\"name\":\"Erin\",\"age\":42,\"countryOfResidence\":\"jp\"}]}");
+
+    shards.forEach(testkit::stop);
+  }
+
+  // the ETag of a snapshot version in this process
+  private static EntityTag tag(long version) {
+    return EntityTag.create(UserRoutes.ETAG_EPOCH + "-" + version, false);
+  }
+
+  @Test
+  public void test7ConditionalGetFromSnapshots() {
+    AtomicReference<UserSnapshot> published = new AtomicReference<>(UserSnapshot.EMPTY);
+    ActorRef<UserRegistry.Command> snapshotRegistry = testkit.spawn(UserRegistry.create(published));
+    TestRoute snapshotRoute = testRoute(new UserRoutes(testkit.system(), snapshotRegistry, published).userRoutes());
+
+    for (String name : new String[]{"Alice", "Bob"}) {
+      snapshotRoute.run(HttpRequest.POST("/users")
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                  "{\"name\": \"" + name + "\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    snapshotRoute.run(HttpRequest.GET("/users"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertHeaderExists("ETag", "\"" + UserRoutes.ETAG_EPOCH + "-2\"");
+    snapshotRoute.run(HttpRequest.GET("/users").addHeader(IfNoneMatch.create(tag(2))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED);
+    snapshotRoute.run(HttpRequest.GET("/users/Alice").addHeader(IfNoneMatch.create(tag(1))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED);
+    // a bare version may come from another process
+    snapshotRoute.run(HttpRequest.GET("/users").addHeader(IfNoneMatch.create(EntityTag.create("2", false))))
+        .assertStatusCode(StatusCodes.OK);
+
+    // a change makes the listing stale, but not the users it didn't touch
+    snapshotRoute.run(HttpRequest.POST("/users")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                "{\"name\": \"Carol\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    snapshotRoute.run(HttpRequest.GET("/users").addHeader(IfNoneMatch.create(tag(2))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertHeaderExists("ETag", "\"" + UserRoutes.ETAG_EPOCH + "-3\"")
+        .assertEntity("{\"users\":["
+            + "{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Carol\",\"age\":42,\"countryOfResidence\":\"jp\"}]}");
+    snapshotRoute.run(HttpRequest.GET("/users/Alice").addHeader(IfNoneMatch.create(tag(1))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED);
+
+    testkit.stop(snapshotRegistry);
+  }
+
+  @Test
+  public void test8StreamAllUsers() {
+    ActorRef<UserRegistry.Command> streamRegistry = testkit.spawn(UserRegistry.create());
+    TestRoute streamRoute = testRoute(new UserRoutes(testkit.system(), streamRegistry).userRoutes());
+
+    streamRoute.run(HttpRequest.GET("/users?stream=json"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("[]");
+
+    for (String name : new String[]{"Bob", "Alice"}) {
+      streamRoute.run(HttpRequest.POST("/users")
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+                  "{\"name\": \"" + name + "\", \"age\": 42, \"countryOfResidence\": \"jp\"}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    streamRoute.run(HttpRequest.GET("/users?stream=json"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("["
+            + "{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"},"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}]");
+    MediaRange ndjson = MediaRanges.create(MediaTypes.applicationWithFixedCharset("x-ndjson", HttpCharsets.UTF_8));
+    streamRoute.run(HttpRequest.GET("/users").addHeader(Accept.create(ndjson)))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/x-ndjson")
+        .assertEntity("{\"name\":\"Alice\",\"age\":42,\"countryOfResidence\":\"jp\"}\n"
+            + "{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}\n");
+    // ndjson is only streamed when it is preferred
+    streamRoute.run(HttpRequest.GET("/users")
+            .addHeader(Accept.create(ndjson.withQValue(0f), MediaRanges.ALL)))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json");
+    streamRoute.run(HttpRequest.GET("/users")
+            .addHeader(Accept.create(ndjson.withQValue(0.5f), MediaRanges.create(MediaTypes.APPLICATION_JSON))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json");
+    streamRoute.run(HttpRequest.GET("/users")
+            .addHeader(Accept.create(ndjson, MediaRanges.ALL_APPLICATION.withQValue(0.5f))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/x-ndjson");
+    streamRoute.run(HttpRequest.GET("/users?stream=ndjson&after=Alice"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"Bob\",\"age\":42,\"countryOfResidence\":\"jp\"}\n");
+
+    testkit.stop(streamRegistry);
+  }
 }
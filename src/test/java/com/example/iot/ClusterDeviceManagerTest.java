@@ -0,0 +1,195 @@
+package com.example.iot;
+
+import akka.Done;
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion.CurrentShardRegionState;
+import akka.cluster.sharding.typed.GetShardRegionState;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+import akka.cluster.typed.Join;
+import akka.cluster.typed.Leave;
+import akka.pattern.StatusReply;
+import com.example.iot.Device.TemperatureRecorded;
+import com.example.iot.DeviceManager.*;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterDeviceManagerTest {
+
+  private static final int NODES = 3;
+  private static final List<ActorTestKit> nodes = new ArrayList<>();
+  private static final List<ActorRef<DeviceManager.Command>> managers = new ArrayList<>();
+
+  // every node on its own random localhost port, joined to the first one
+  private static final Config config = ConfigFactory.parseString(
+          "akka.remote.artery.canonical.port = 0\nakka.cluster.seed-nodes = []")
+      .withFallback(ConfigFactory.load("iot-cluster"));
+
+  @BeforeClass
+  public static void startCluster() {
+    for (int i = 0; i < NODES; i++) {
+      nodes.add(ActorTestKit.create("ClusterDeviceManagerTest", config));
+    }
+    for (ActorTestKit node : nodes) {
+      join(node);
+    }
+    awaitMembersUp(nodes);
+    for (ActorTestKit node : nodes) {
+      managers.add(node.spawn(ClusterDeviceManager.create(), "manager"));
+    }
+  }
+
+  private static void join(ActorTestKit node) {
+    Cluster first = Cluster.get(nodes.get(0).system());
+    Cluster.get(node.system()).manager().tell(Join.create(first.selfMember().address()));
+  }
+
+  // all the nodes see exactly these nodes up
+  private static void awaitMembersUp(List<ActorTestKit> members) {
+    nodes.get(0).createTestProbe().awaitAssert(Duration.ofSeconds(20), () -> {
+      for (ActorTestKit node : members) {
+        long up = StreamSupport.stream(Cluster.get(node.system()).state().getMembers().spliterator(), false)
+            .filter(member -> member.status().equals(MemberStatus.up()))
+            .count();
+        assertEquals(members.size(), up);
+      }
+      return null;
+    });
+  }
+
+  @AfterClass
+  public static void stopCluster() {
+    nodes.forEach(ActorTestKit::shutdownTestKit);
+  }
+
+  @Test
+  public void testTrackOnOneNodeRecordAndQueryOnOthers() {
+    TestProbe<DeviceRegistered> registeredProbe = nodes.get(0).createTestProbe(DeviceRegistered.class);
+    for (int i = 0; i < 10; i++) {
+      managers.get(0).tell(new RequestTrackDevice("group", "device" + i, registeredProbe.getRef()));
+      registeredProbe.receiveMessage();
+    }
+
+    // every node asks the group entity, wherever it lives
+    TestProbe<ReplyDeviceList> deviceListProbe = nodes.get(2).createTestProbe(ReplyDeviceList.class);
+    deviceListProbe.awaitAssert(Duration.ofSeconds(10), () -> {
+      for (ActorRef<DeviceManager.Command> manager : managers) {
+        manager.tell(new RequestDeviceList(0L, "group", deviceListProbe.getRef()));
+        assertEquals(10, deviceListProbe.receiveMessage().ids().size());
+      }
+      return null;
+    });
+
+    // recorded through the second node, wherever the device entities live
+    TestProbe<TemperatureRecorded> recordProbe = nodes.get(1).createTestProbe(TemperatureRecorded.class);
+    for (int i = 0; i < 10; i++) {
+      managers.get(1).tell(new ForwardToDevice(
+          "group", "device" + i, new Device.RecordTemperature(i, i, recordProbe.getRef())));
+    }
+    Set<Long> recorded = recordProbe.receiveSeveralMessages(10, Duration.ofSeconds(10)).stream()
+        .map(TemperatureRecorded::requestId)
+        .collect(Collectors.toSet());
+    assertEquals(Set.of(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), recorded);
+
+    TestProbe<RespondAllTemperatures> allTempProbe = nodes.get(2).createTestProbe(RespondAllTemperatures.class);
+    managers.get(2).tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    RespondAllTemperatures response = allTempProbe.receiveMessage(Duration.ofSeconds(10));
+    assertEquals(1L, response.requestId());
+    assertEquals(10, response.temperatures().size());
+    assertEquals(new Temperature(3.0), response.temperatures().get("device3"));
+
+    // the group ids reach the other nodes through replication
+    TestProbe<ReplyDeviceGroupList> groupListProbe = nodes.get(2).createTestProbe(ReplyDeviceGroupList.class);
+    groupListProbe.awaitAssert(Duration.ofSeconds(10), () -> {
+      managers.get(2).tell(new RequestDeviceGroupList(2L, groupListProbe.getRef()));
+      assertEquals(Set.of("group"), groupListProbe.receiveMessage().ids());
+      return null;
+    });
+
+    TestProbe<RespondFleetTemperatures> fleetProbe = nodes.get(1).createTestProbe(RespondFleetTemperatures.class);
+    fleetProbe.awaitAssert(Duration.ofSeconds(20), () -> {
+      managers.get(1).tell(new RequestFleetTemperatures(3L, fleetProbe.getRef()));
+      RespondFleetTemperatures fleet = fleetProbe.receiveMessage(Duration.ofSeconds(10));
+      assertEquals(Map.of("group", GroupQueryStatus.COMPLETED), fleet.status());
+      return null;
+    });
+  }
+
+  @Test
+  public void testKeepGroupsAndDevicesWhenANodeLeaves() {
+    ActorTestKit leaving = ActorTestKit.create("ClusterDeviceManagerTest", config);
+    try {
+      join(leaving);
+      List<ActorTestKit> withLeaving = new ArrayList<>(nodes);
+      withLeaving.add(leaving);
+      awaitMembersUp(withLeaving);
+      ActorRef<DeviceManager.Command> leavingManager = leaving.spawn(ClusterDeviceManager.create(), "manager");
+
+      // new shards go to the node with the fewest, so some of these groups start on the joined one
+      TestProbe<DeviceRegistered> registeredProbe = leaving.createTestProbe(DeviceRegistered.class);
+      for (int i = 0; i < 10; i++) {
+        leavingManager.tell(new RequestTrackDevice("moving" + i, "device", registeredProbe.getRef()));
+        registeredProbe.receiveMessage(Duration.ofSeconds(10));
+      }
+      TestProbe<CurrentShardRegionState> regionProbe = leaving.createTestProbe(CurrentShardRegionState.class);
+      ClusterSharding.get(leaving.system()).shardState()
+          .tell(new GetShardRegionState(ClusterDeviceGroup.GROUP_KEY, regionProbe.getRef()));
+      assertTrue(regionProbe.receiveMessage().getShards().stream()
+          .anyMatch(shard -> !shard.getEntityIds().isEmpty()));
+
+      Cluster leavingCluster = Cluster.get(leaving.system());
+      leavingCluster.manager().tell(Leave.create(leavingCluster.selfMember().address()));
+      awaitMembersUp(nodes);
+
+      // the groups handed off their members, and their devices started again elsewhere
+      TestProbe<ReplyDeviceList> deviceListProbe = nodes.get(1).createTestProbe(ReplyDeviceList.class);
+      TestProbe<TemperatureRecorded> recordProbe = nodes.get(2).createTestProbe(TemperatureRecorded.class);
+      for (int i = 0; i < 10; i++) {
+        String groupId = "moving" + i;
+        long requestId = i;
+        deviceListProbe.awaitAssert(Duration.ofSeconds(20), () -> {
+          managers.get(1).tell(new RequestDeviceList(requestId, groupId, deviceListProbe.getRef()));
+          assertEquals(Set.of("device"), deviceListProbe.receiveMessage(Duration.ofSeconds(5)).ids());
+          return null;
+        });
+        managers.get(2).tell(new ForwardToDevice(
+            groupId, "device", new Device.RecordTemperature(requestId, 20.0, recordProbe.getRef())));
+        assertEquals(requestId, recordProbe.receiveMessage(Duration.ofSeconds(10)).requestId());
+      }
+    } finally {
+      leaving.shutdownTestKit();
+    }
+  }
+
+  @Test
+  public void testAnswerUnsupportedCommandsWithErrors() {
+    TestProbe<StatusReply<Done>> ackProbe = nodes.get(0).createTestProbe();
+    TestProbe<TemperatureEvent> subscriberProbe = nodes.get(0).createTestProbe(TemperatureEvent.class);
+    managers.get(0).tell(new SubscribeTemperatureChanges("group", subscriberProbe.getRef(), ackProbe.getRef()));
+    assertTrue(ackProbe.receiveMessage().isError());
+    managers.get(0).tell(new AddAlertRule("group", new ThresholdRule("too-hot", 30.0, 28.0), ackProbe.getRef()));
+    assertTrue(ackProbe.receiveMessage().isError());
+
+    TestProbe<StatusReply<RespondRollups>> rollupProbe = nodes.get(0).createTestProbe();
+    managers.get(0).tell(new RequestRollups(
+        4L, "group", Set.of(), RollupResolution.MINUTE, 0L, Long.MAX_VALUE, rollupProbe.getRef()));
+    assertTrue(rollupProbe.receiveMessage().isError());
+  }
+}
@@ -175,4 +175,38 @@ public class DeviceGroupQueryTest {
 
     assertEquals(expectedTemperatures, response.temperatures());
   }
-}
\ No newline at end of file
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCollectFromIndexedDevicesAndKnownReadings() {
+    TestProbe<RespondAllTemperatures> requester = testKit.createTestProbe(RespondAllTemperatures.class);
+    TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+    TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+
+    String[] deviceIds = {"device1", "device2"};
+    ActorRef<Device.Command>[] devices = new ActorRef[] {device1.getRef(), device2.getRef()};
+
+    ActorRef<DeviceGroupQuery.Command> queryActor = testKit.spawn(DeviceGroupQuery.create(
+        deviceIds, devices, Map.of("device3", new Temperature(3.0)), 1L, requester.getRef(), Duration.ofSeconds(3)));
+
+    device1.expectMessageClass(Device.ReadTemperature.class);
+    device2.expectMessageClass(Device.ReadTemperature.class);
+
+    // replies from devices that were not asked are ignored
+    queryActor.tell(new WrappedRespondTemperature(
+        new Device.RespondTemperature(0L, "device0", Optional.of(0.0))));
+    queryActor.tell(new WrappedRespondTemperature(
+        new Device.RespondTemperature(0L, "device2", Optional.empty())));
+    queryActor.tell(new WrappedRespondTemperature(
+        new Device.RespondTemperature(0L, "device1", Optional.of(1.0))));
+
+    RespondAllTemperatures response = requester.receiveMessage();
+    assertEquals(1L, response.requestId());
+    assertEquals(
+        Map.of(
+            "device1", new Temperature(1.0),
+            "device2", TemperatureNotAvailable.INSTANCE,
+            "device3", new Temperature(3.0)),
+        response.temperatures());
+  }
+}
@@ -0,0 +1,93 @@
+package com.example.iot;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.japi.Pair;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import com.example.iot.DeviceManager.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceGroupStreamQueryTest {
+
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+  @Test
+  public void testStreamReadingsAndSummarizeMissingDevices() throws Exception {
+    TestProbe<RespondTemperatureStream> requester = testKit.createTestProbe(RespondTemperatureStream.class);
+    TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+    TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+    TestProbe<Device.Command> device3 = testKit.createTestProbe(Device.Command.class);
+
+    Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+    deviceIdToActor.put("device1", device1.getRef());
+    deviceIdToActor.put("device2", device2.getRef());
+    deviceIdToActor.put("device3", device3.getRef());
+
+    testKit.spawn(DeviceGroupStreamQuery.create(deviceIdToActor, 1L, requester.getRef(), Duration.ofMillis(500)));
+
+    RespondTemperatureStream response = requester.receiveMessage();
+    assertEquals(1L, response.requestId());
+    Pair<CompletionStage<TemperatureStreamSummary>, CompletionStage<List<Device.RespondTemperature>>> result =
+        response.temperatures().toMat(Sink.seq(), Keep.both()).run(testKit.system());
+
+    Device.ReadTemperature read1 = device1.expectMessageClass(Device.ReadTemperature.class);
+    assertEquals(1L, read1.requestId());
+    read1.replyTo().tell(new Device.RespondTemperature(1L, "device1", Optional.of(1.0)));
+    device2.expectMessageClass(Device.ReadTemperature.class);
+    device3.expectMessageClass(Device.ReadTemperature.class);
+    device3.stop();
+    // no reply from device2
+
+    List<Device.RespondTemperature> readings = result.second().toCompletableFuture().get(3, TimeUnit.SECONDS);
+    assertEquals(List.of(new Device.RespondTemperature(1L, "device1", Optional.of(1.0))), readings);
+
+    TemperatureStreamSummary summary = result.first().toCompletableFuture().get(3, TimeUnit.SECONDS);
+    assertEquals(new TemperatureStreamSummary(1L, 1, Set.of("device2"), Set.of("device3")), summary);
+  }
+
+  @Test
+  public void testCompleteSummaryAndStopWhenStreamIsCancelled() throws Exception {
+    TestProbe<RespondTemperatureStream> requester = testKit.createTestProbe(RespondTemperatureStream.class);
+    TestProbe<Device.Command> device1 = testKit.createTestProbe(Device.Command.class);
+    TestProbe<Device.Command> device2 = testKit.createTestProbe(Device.Command.class);
+
+    Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+    deviceIdToActor.put("device1", device1.getRef());
+    deviceIdToActor.put("device2", device2.getRef());
+
+    ActorRef<DeviceGroupStreamQuery.Command> query = testKit.spawn(
+        DeviceGroupStreamQuery.create(deviceIdToActor, 2L, requester.getRef(), Duration.ofSeconds(30)));
+
+    RespondTemperatureStream response = requester.receiveMessage();
+    Pair<CompletionStage<TemperatureStreamSummary>, CompletionStage<List<Device.RespondTemperature>>> result =
+        response.temperatures().take(1).toMat(Sink.seq(), Keep.both()).run(testKit.system());
+
+    Device.ReadTemperature read1 = device1.expectMessageClass(Device.ReadTemperature.class);
+    read1.replyTo().tell(new Device.RespondTemperature(2L, "device1", Optional.of(1.0)));
+    device2.expectMessageClass(Device.ReadTemperature.class);
+    // device2 never replies, the consumer is gone long before the deadline
+
+    List<Device.RespondTemperature> readings = result.second().toCompletableFuture().get(3, TimeUnit.SECONDS);
+    assertEquals(List.of(new Device.RespondTemperature(2L, "device1", Optional.of(1.0))), readings);
+
+    TemperatureStreamSummary summary = result.first().toCompletableFuture().get(3, TimeUnit.SECONDS);
+    assertEquals(new TemperatureStreamSummary(2L, 1, Set.of("device2"), Set.of()), summary);
+    TestProbe<Object> watcher = testKit.createTestProbe();
+    watcher.expectTerminated(query, Duration.ofSeconds(3));
+  }
+}
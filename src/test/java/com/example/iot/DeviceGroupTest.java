@@ -1,16 +1,25 @@
 package com.example.iot;
 
+import akka.Done;
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
+import akka.pattern.StatusReply;
+import com.typesafe.config.ConfigFactory;
 import com.example.iot.Device.RecordTemperature;
 import com.example.iot.Device.TemperatureRecorded;
 import com.example.iot.DeviceManager.*;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -152,4 +161,315 @@ public class DeviceGroupTest {
 
     assertEquals(expectedTemperatures, response.temperatures());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testAnswerAllTemperaturesFromPushedSnapshot() {
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString("iot.group.snapshot.enabled = on")
+            .withFallback(testKit.system().settings().config()));
+
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device();
+
+    groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    groupActor.tell(new RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+    assertEquals(
+        Map.of("device1", TemperatureNotAvailable.INSTANCE, "device2", TemperatureNotAvailable.INSTANCE),
+        allTempProbe.receiveMessage().temperatures());
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    deviceActor1.tell(new RecordTemperature(0L, 1.0, recordProbe.getRef()));
+    assertEquals(0L, recordProbe.receiveMessage().requestId());
+
+    groupActor.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    RespondAllTemperatures response = allTempProbe.receiveMessage();
+    assertEquals(1L, response.requestId());
+    assertEquals(
+        Map.of("device1", new Temperature(1.0), "device2", TemperatureNotAvailable.INSTANCE),
+        response.temperatures());
+  }
+
+  @Test
+  public void testPassivateIdleDevicesAndRespawnThemOnDemand() {
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString("iot.group.passivation { enabled = on, idle-timeout = 200ms }")
+            .withFallback(testKit.system().settings().config()));
+
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device();
+
+    groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    deviceActor1.tell(new RecordTemperature(0L, 1.0, recordProbe.getRef()));
+    assertEquals(0L, recordProbe.receiveMessage().requestId());
+
+    recordProbe.expectTerminated(deviceActor1, Duration.ofSeconds(3));
+
+    // the registered ref is the stopped actor, what is sent to it is lost
+    deviceActor1.tell(new RecordTemperature(1L, 5.0, recordProbe.getRef()));
+    recordProbe.expectNoMessage(Duration.ofMillis(100));
+
+    // passivated devices are still tracked and answered from the group's table
+    TestProbe<ReplyDeviceList> deviceListProbe = testKit.createTestProbe(ReplyDeviceList.class);
+    groupActor.tell(new RequestDeviceList(0L, "group", deviceListProbe.getRef()));
+    assertEquals(Set.of("device1", "device2"), deviceListProbe.receiveMessage().ids());
+
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    groupActor.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    assertEquals(
+        Map.of("device1", new Temperature(1.0), "device2", TemperatureNotAvailable.INSTANCE),
+        allTempProbe.receiveMessage().temperatures());
+
+    // the next message routed through the group brings the device back with its state
+    TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+    groupActor.tell(new ForwardToDevice("group", "device1", new Device.ReadTemperature(2L, readProbe.getRef())));
+    Device.RespondTemperature response = readProbe.receiveMessage();
+    assertEquals(2L, response.requestId());
+    assertEquals(Optional.of(1.0), response.value());
+
+    groupActor.tell(new ForwardToDevice("group", "device1", new Device.RequestRecordedWatermark(recordProbe.getRef())));
+    assertEquals(0L, recordProbe.receiveMessage().requestId());
+
+    // tracking the device again hands out the actor it runs in now
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> respawned = registeredProbe.receiveMessage().device();
+    assertNotEquals(deviceActor1, respawned);
+    respawned.tell(new RecordTemperature(3L, 2.0, recordProbe.getRef()));
+    assertEquals(3L, recordProbe.receiveMessage().requestId());
+  }
+
+  @Test
+  public void testRecoverDevicesFromJournal() throws Exception {
+    Path directory = Files.createTempDirectory("iot-journal");
+    // small enough that the recorded values overflow the segment into a snapshot
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString(
+                "iot.persistence { enabled = on, segment-size = 256B, directory = \"" + directory + "\" }")
+            .withFallback(testKit.system().settings().config()));
+
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device();
+    groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    for (int i = 0; i < 20; i++) {
+      deviceActor1.tell(new RecordTemperature(i, i, recordProbe.getRef()));
+      recordProbe.receiveMessage();
+    }
+
+    // the pushed readings are journaled before the group answers this
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    groupActor.tell(new RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+    allTempProbe.receiveMessage();
+    testKit.stop(groupActor);
+
+    ActorRef<DeviceGroup.Command> recovered = testKit.spawn(DeviceGroup.create("group", settings));
+    recovered.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    assertEquals(
+        Map.of("device1", new Temperature(19.0), "device2", TemperatureNotAvailable.INSTANCE),
+        allTempProbe.receiveMessage().temperatures());
+
+    TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+    recovered.tell(new ForwardToDevice("group", "device1", new Device.ReadTemperature(2L, readProbe.getRef())));
+    assertEquals(Optional.of(19.0), readProbe.receiveMessage().value());
+  }
+
+  @Test
+  public void testIgnoreTornJournalEntries() throws Exception {
+    Path directory = Files.createTempDirectory("iot-journal");
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString("iot.persistence { enabled = on, directory = \"" + directory + "\" }")
+            .withFallback(testKit.system().settings().config()));
+
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor = registeredProbe.receiveMessage().device();
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    deviceActor.tell(new RecordTemperature(1L, 21.0, recordProbe.getRef()));
+    recordProbe.receiveMessage();
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    groupActor.tell(new RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+    allTempProbe.receiveMessage();
+    testKit.stop(groupActor);
+
+    // the reading is the last entry, as if the crash only got part of it to disk
+    Path segment = directory.resolve("group.0.journal");
+    ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(segment));
+    int last = 0;
+    for (int entry = 0; journal.get(entry) != 0; entry += 1 + 4 + 4 + journal.getInt(entry + 1)) {
+      last = entry;
+    }
+    int end = last + 1 + 4 + 4 + journal.getInt(last + 1);
+    Arrays.fill(journal.array(), end - 4, end, (byte) 0);
+    Files.write(segment, journal.array());
+
+    ActorRef<DeviceGroup.Command> recovered = testKit.spawn(DeviceGroup.create("group", settings));
+    recovered.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    assertEquals(Map.of("device1", TemperatureNotAvailable.INSTANCE), allTempProbe.receiveMessage().temperatures());
+  }
+
+  @Test
+  public void testRecoverDevicePassivatedBeforeItsFirstReading() throws Exception {
+    Path directory = Files.createTempDirectory("iot-journal");
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString(
+                "iot.persistence { enabled = on, directory = \"" + directory + "\" }\n"
+                    + "iot.group.passivation { enabled = on, idle-timeout = 200ms }")
+            .withFallback(testKit.system().settings().config()));
+
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor = registeredProbe.receiveMessage().device();
+    registeredProbe.expectTerminated(deviceActor, Duration.ofSeconds(3));
+
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    groupActor.tell(new RequestAllTemperatures(0L, "group", allTempProbe.getRef()));
+    allTempProbe.receiveMessage();
+    testKit.stop(groupActor);
+
+    ActorRef<DeviceGroup.Command> recovered = testKit.spawn(DeviceGroup.create("group", settings));
+    recovered.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    assertEquals(Map.of("device1", TemperatureNotAvailable.INSTANCE), allTempProbe.receiveMessage().temperatures());
+  }
+
+  @Test
+  public void testPublishRecordedTemperaturesToSubscribers() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor = registeredProbe.receiveMessage().device();
+
+    TestProbe<TemperatureEvent> subscriberProbe = testKit.createTestProbe(TemperatureEvent.class);
+    TestProbe<StatusReply<Done>> subscribedProbe = testKit.createTestProbe();
+    groupActor.tell(new SubscribeTemperatureChanges("group", subscriberProbe.getRef(), subscribedProbe.getRef()));
+    assertEquals(StatusReply.ack(), subscribedProbe.receiveMessage());
+
+    // devices spawned after the subscription push as well
+    groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor2 = registeredProbe.receiveMessage().device();
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    deviceActor.tell(new RecordTemperature(1L, 21.5, recordProbe.getRef()));
+    recordProbe.receiveMessage();
+    TemperatureChanged changed = (TemperatureChanged) subscriberProbe.receiveMessage();
+    assertEquals("group", changed.groupId());
+    assertEquals("device1", changed.deviceId());
+    assertEquals(21.5, changed.value(), 0.0);
+
+    deviceActor2.tell(new RecordTemperature(2L, 19.0, recordProbe.getRef()));
+    recordProbe.receiveMessage();
+    assertEquals("device2", ((TemperatureChanged) subscriberProbe.receiveMessage()).deviceId());
+
+    // a group that stops ends its subscriptions
+    testKit.stop(groupActor);
+    assertEquals(new SubscriptionEnded("group"), subscriberProbe.receiveMessage());
+  }
+
+  @Test
+  public void testRaiseAndClearAlertsWithHysteresis() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group"));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor = registeredProbe.receiveMessage().device();
+
+    TestProbe<Alert> alertProbe = testKit.createTestProbe(Alert.class);
+    TestProbe<StatusReply<Done>> ackProbe = testKit.createTestProbe();
+    groupActor.tell(new AddAlertRule("group", new ThresholdRule("too-hot", 30.0, 28.0), ackProbe.getRef()));
+    assertEquals(StatusReply.ack(), ackProbe.receiveMessage());
+    groupActor.tell(new SubscribeAlerts("group", alertProbe.getRef(), ackProbe.getRef()));
+    assertEquals(StatusReply.ack(), ackProbe.receiveMessage());
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    double[] values = {25.0, 31.0, 32.0, 29.0, 30.5, 27.5, 29.0};
+    for (int i = 0; i < values.length; i++) {
+      deviceActor.tell(new RecordTemperature(i, values[i], recordProbe.getRef()));
+      recordProbe.receiveMessage();
+    }
+
+    // raised once above 30, not cleared until below 28
+    Alert raised = alertProbe.receiveMessage();
+    assertEquals("device1", raised.deviceId());
+    assertEquals("too-hot", raised.ruleId());
+    assertEquals(true, raised.raised());
+    assertEquals(31.0, raised.value(), 0.0);
+    Alert cleared = alertProbe.receiveMessage();
+    assertEquals(false, cleared.raised());
+    assertEquals(27.5, cleared.value(), 0.0);
+    alertProbe.expectNoMessage(Duration.ofMillis(100));
+
+    // every value of a batch is evaluated, not only the last one
+    deviceActor.tell(new Device.RecordTemperatures(new double[]{35.0, 20.0}));
+    Alert batchRaised = alertProbe.receiveMessage();
+    assertEquals(true, batchRaised.raised());
+    assertEquals(35.0, batchRaised.value(), 0.0);
+    Alert batchCleared = alertProbe.receiveMessage();
+    assertEquals(false, batchCleared.raised());
+    assertEquals(20.0, batchCleared.value(), 0.0);
+
+    groupActor.tell(new RemoveAlertRule("group", "too-hot", ackProbe.getRef()));
+    assertEquals(StatusReply.ack(), ackProbe.receiveMessage());
+    deviceActor.tell(new RecordTemperature(10L, 40.0, recordProbe.getRef()));
+    recordProbe.receiveMessage();
+    alertProbe.expectNoMessage(Duration.ofMillis(100));
+  }
+
+  @Test
+  public void testQueryRollupsOfRecordedValues() {
+    IotSettings settings = IotSettings.create(
+        ConfigFactory.parseString("iot.group.rollups.enabled = on")
+            .withFallback(testKit.system().settings().config()));
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+
+    groupActor.tell(new RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> deviceActor1 = registeredProbe.receiveMessage().device();
+    groupActor.tell(new RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    long from = System.currentTimeMillis() - Duration.ofHours(2).toMillis();
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    for (double value : new double[]{10.0, 30.0, 20.0}) {
+      deviceActor1.tell(new RecordTemperature(0L, value, recordProbe.getRef()));
+      recordProbe.receiveMessage();
+    }
+    long to = System.currentTimeMillis() + Duration.ofHours(1).toMillis();
+
+    TestProbe<StatusReply<RespondRollups>> rollupProbe = testKit.createTestProbe();
+    for (RollupResolution resolution : RollupResolution.values()) {
+      groupActor.tell(new RequestRollups(1L, "group", Set.of(), resolution, from, to, rollupProbe.getRef()));
+      RespondRollups response = rollupProbe.receiveMessage().getValue();
+      assertEquals(Set.of("device1", "device2"), response.rollups().keySet());
+      assertEquals(0, response.rollups().get("device2").count().length);
+
+      // the values may straddle a bucket boundary
+      Rollup rollup = response.rollups().get("device1");
+      assertEquals(3L, Arrays.stream(rollup.count()).sum());
+      assertEquals(60.0, Arrays.stream(rollup.sum()).sum(), 0.0);
+      assertEquals(10.0, Arrays.stream(rollup.min()).min().getAsDouble(), 0.0);
+      assertEquals(30.0, Arrays.stream(rollup.max()).max().getAsDouble(), 0.0);
+    }
+
+    groupActor.tell(new RequestRollups(2L, "group", Set.of("device1"), RollupResolution.MINUTE, to, to + 60_000L,
+        rollupProbe.getRef()));
+    assertEquals(0, rollupProbe.receiveMessage().getValue().rollups().get("device1").count().length);
+  }
+}
@@ -8,6 +8,9 @@ import com.example.iot.DeviceManager.*;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -168,4 +171,81 @@ public class DeviceManagerTest {
           return null;
         });
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testRecordTemperatureBatchAcrossGroups() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+    managerActor.tell(new RequestTrackDevice("group1", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device();
+
+    managerActor.tell(new RequestTrackDevice("group2", "device2", registeredProbe.getRef()));
+    ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().device();
+
+    TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+    managerActor.tell(new RecordTemperatureBatch(7L, List.of(
+        new TemperatureSample("group1", "device1", 1.0),
+        new TemperatureSample("group2", "device2", 2.0),
+        new TemperatureSample("group1", "device1", 1.5),
+        new TemperatureSample("group1", "unknown", 3.0),
+        new TemperatureSample("unknown", "device1", 4.0)
+    ), batchProbe.getRef()));
+
+    TemperatureBatchRecorded recorded = batchProbe.receiveMessage();
+    assertEquals(7L, recorded.requestId());
+    assertEquals(3, recorded.accepted());
+    assertEquals(2, recorded.rejected());
+
+    TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+    device1.tell(new Device.ReadTemperature(1L, readProbe.getRef()));
+    assertEquals(Optional.of(1.5), readProbe.receiveMessage().value());
+    device2.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+    assertEquals(Optional.of(2.0), readProbe.receiveMessage().value());
+  }
+
+  @Test
+  public void testCollectTemperaturesFromAllGroups() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+    managerActor.tell(new RequestTrackDevice("group1", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device();
+
+    managerActor.tell(new RequestTrackDevice("group2", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    device1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+    assertEquals(0L, recordProbe.receiveMessage().requestId());
+
+    TestProbe<RespondFleetTemperatures> fleetProbe = testKit.createTestProbe(RespondFleetTemperatures.class);
+    managerActor.tell(new RequestFleetTemperatures(3L, fleetProbe.getRef()));
+    RespondFleetTemperatures response = fleetProbe.receiveMessage();
+    assertEquals(3L, response.requestId());
+    assertEquals(
+        Map.of(
+            "group1", Map.of("device1", new Temperature(1.0)),
+            "group2", Map.of("device2", TemperatureNotAvailable.INSTANCE)),
+        response.temperatures());
+    assertEquals(
+        Map.of("group1", GroupQueryStatus.COMPLETED, "group2", GroupQueryStatus.COMPLETED),
+        response.status());
+  }
+
+  @Test
+  public void testForwardAllTemperaturesRequestToGroup() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceManager.Command> managerActor = testKit.spawn(DeviceManager.create());
+
+    managerActor.tell(new RequestTrackDevice("group", "device", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<RespondAllTemperatures> allTempProbe = testKit.createTestProbe(RespondAllTemperatures.class);
+    managerActor.tell(new RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+    assertEquals(Map.of("device", TemperatureNotAvailable.INSTANCE), allTempProbe.receiveMessage().temperatures());
+
+    managerActor.tell(new RequestAllTemperatures(2L, "unknown", allTempProbe.getRef()));
+    assertEquals(Map.of(), allTempProbe.receiveMessage().temperatures());
+  }
+}
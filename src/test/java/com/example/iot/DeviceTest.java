@@ -4,12 +4,17 @@ import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
 import com.example.iot.Device.ReadTemperature;
+import com.example.iot.Device.ReadTemperatureStats;
 import com.example.iot.Device.RecordTemperature;
+import com.example.iot.Device.RecordTemperatureNoReply;
+import com.example.iot.Device.RequestRecordedWatermark;
 import com.example.iot.Device.RespondTemperature;
+import com.example.iot.Device.RespondTemperatureStats;
 import com.example.iot.Device.TemperatureRecorded;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
@@ -53,4 +58,49 @@ public class DeviceTest {
     assertEquals(42L, response.requestId());
     assertEquals(Optional.empty(), response.value());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testRecordWithoutReplyAndAcknowledgeByWatermark() {
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    TestProbe<RespondTemperature> readProbe = testKit.createTestProbe(RespondTemperature.class);
+    ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+
+    deviceActor.tell(new RequestRecordedWatermark(recordProbe.getRef()));
+    assertEquals(-1L, recordProbe.receiveMessage().requestId());
+
+    deviceActor.tell(new RecordTemperatureNoReply(1L, 10.0));
+    deviceActor.tell(new RecordTemperatureNoReply(2L, 11.0));
+    deviceActor.tell(new RecordTemperatureNoReply(3L, 12.0));
+    recordProbe.expectNoMessage();
+
+    deviceActor.tell(new RequestRecordedWatermark(recordProbe.getRef()));
+    assertEquals(3L, recordProbe.receiveMessage().requestId());
+
+    deviceActor.tell(new ReadTemperature(4L, readProbe.getRef()));
+    assertEquals(Optional.of(12.0), readProbe.receiveMessage().value());
+  }
+
+  @Test
+  public void testReplyWithStatsOverRetainedReadings() {
+    TestProbe<TemperatureRecorded> recordProbe = testKit.createTestProbe(TemperatureRecorded.class);
+    TestProbe<RespondTemperatureStats> statsProbe = testKit.createTestProbe(RespondTemperatureStats.class);
+    ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device", 3));
+
+    deviceActor.tell(new ReadTemperatureStats(1L, Duration.ofMinutes(1), statsProbe.getRef()));
+    RespondTemperatureStats empty = statsProbe.receiveMessage();
+    assertEquals(1L, empty.requestId());
+    assertEquals(Device.TemperatureStats.EMPTY, empty.stats());
+
+    // the first reading falls out of the ring buffer
+    double[] values = {100.0, 20.0, 26.0, 23.0};
+    for (int i = 0; i < values.length; i++) {
+      deviceActor.tell(new RecordTemperature(i, values[i], recordProbe.getRef()));
+      assertEquals(i, recordProbe.receiveMessage().requestId());
+    }
+
+    deviceActor.tell(new ReadTemperatureStats(2L, Duration.ofMinutes(1), statsProbe.getRef()));
+    RespondTemperatureStats response = statsProbe.receiveMessage();
+    assertEquals(2L, response.requestId());
+    assertEquals(new Device.TemperatureStats(3, 20.0, 26.0, 23.0), response.stats());
+  }
+}
@@ -0,0 +1,121 @@
+package com.example.iot;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.testkit.JUnitRouteTest;
+import akka.http.javadsl.testkit.TestRoute;
+import akka.http.javadsl.testkit.TestRouteResult;
+import com.example.iot.DeviceManager.DeviceRegistered;
+import com.example.iot.DeviceManager.RequestTrackDevice;
+import org.junit.*;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IotRoutesTest extends JUnitRouteTest {
+
+  @ClassRule
+  public static TestKitJunitResource testkit = new TestKitJunitResource();
+
+  // shared manager for all tests
+  private static ActorRef<DeviceManager.Command> deviceManager;
+
+  private TestRoute appRoute;
+
+  @BeforeClass
+  public static void beforeClass() {
+    deviceManager = testkit.spawn(DeviceManager.create());
+  }
+
+  @Before
+  public void before() {
+    IotRoutes iotRoutes = new IotRoutes(testkit.system(), deviceManager);
+    appRoute = testRoute(iotRoutes.iotRoutes());
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    testkit.stop(deviceManager);
+  }
+
+  @Test
+  public void test1TrackDevices() {
+    appRoute.run(HttpRequest.POST("/iot/groups/group/devices/device1"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"groupId\":\"group\",\"deviceId\":\"device1\"}");
+    appRoute.run(HttpRequest.POST("/iot/groups/group/devices/device2"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.GET("/iot/groups/group/devices"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"ids\":[\"device1\",\"device2\"]}");
+  }
+
+  @Test
+  public void test2RecordTemperature() {
+    appRoute.run(HttpRequest.POST("/iot/groups/group/devices/device1/temperature")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"value\": 21.5}"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json");
+
+    appRoute.run(HttpRequest.POST("/iot/groups/group/devices/unknown/temperature")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"value\": 21.5}"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+    appRoute.run(HttpRequest.POST("/iot/groups/unknown/devices/device1/temperature")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"value\": 21.5}"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+  }
+
+  @Test
+  public void test3IngestNdjson() {
+    String body = """
+        {"groupId": "group", "deviceId": "device1", "value": 22.0}
+        {"groupId": "group", "deviceId": "device2", "value": 23.5}
+        {"groupId": "group", "deviceId": "unknown", "value": 1.0}
+        not a sample
+        """;
+    appRoute.run(HttpRequest.POST("/iot/readings").withEntity(body))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("{\"accepted\":2,\"rejected\":2}");
+  }
+
+  @Test
+  public void test3RejectTooLongLines() {
+    String body = "{\"groupId\": \"group\", \"deviceId\": \"" + "d".repeat(8192) + "\", \"value\": 1.0}\n";
+    appRoute.run(HttpRequest.POST("/iot/readings").withEntity(body))
+        .assertStatusCode(StatusCodes.BAD_REQUEST);
+  }
+
+  @Test
+  public void test4GroupTemperatures() {
+    appRoute.run(HttpRequest.GET("/iot/groups/group/temperatures"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("{\"temperatures\":{"
+            + "\"device1\":{\"status\":\"ok\",\"value\":22.0},"
+            + "\"device2\":{\"status\":\"ok\",\"value\":23.5}}}");
+  }
+
+  @Test
+  public void test5TemperatureEvents() {
+    appRoute.run(HttpRequest.GET("/iot/groups/unknown/temperatures/events"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+
+    TestProbe<DeviceRegistered> registeredProbe = testkit.createTestProbe(DeviceRegistered.class);
+    deviceManager.tell(new RequestTrackDevice("events", "device1", registeredProbe.getRef()));
+    ActorRef<Device.Command> device = registeredProbe.receiveMessage().device();
+
+    TestRouteResult events = appRoute.run(HttpRequest.GET("/iot/groups/events/temperatures/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("text/event-stream");
+
+    // the group stops with its last device, which ends the stream
+    device.tell(Device.Passivate.INSTANCE);
+    events.entityString();
+  }
+}
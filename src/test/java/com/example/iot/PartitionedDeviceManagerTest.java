@@ -0,0 +1,84 @@
+package com.example.iot;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import com.example.iot.DeviceManager.*;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class PartitionedDeviceManagerTest {
+
+  @ClassRule
+  public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+  private static final IotSettings settings = IotSettings.create(
+      ConfigFactory.parseString("iot.manager.partitions = 4")
+          .withFallback(testKit.system().settings().config()));
+
+  @Test
+  public void testRouteGroupsToPartitionsAndMergeGroupList() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceManager.Command> managerActor = testKit.spawn(PartitionedDeviceManager.create(settings));
+
+    for (int i = 0; i < 8; i++) {
+      managerActor.tell(new RequestTrackDevice("group" + i, "device", registeredProbe.getRef()));
+      registeredProbe.receiveMessage();
+    }
+    managerActor.tell(new RequestTrackDevice("group0", "device2", registeredProbe.getRef()));
+    registeredProbe.receiveMessage();
+
+    TestProbe<ReplyDeviceGroupList> groupListProbe = testKit.createTestProbe(ReplyDeviceGroupList.class);
+    managerActor.tell(new RequestDeviceGroupList(0L, groupListProbe.getRef()));
+    ReplyDeviceGroupList groups = groupListProbe.receiveMessage();
+    assertEquals(0L, groups.requestId());
+    assertEquals(
+        Set.of("group0", "group1", "group2", "group3", "group4", "group5", "group6", "group7"),
+        groups.ids());
+
+    TestProbe<ReplyDeviceList> deviceListProbe = testKit.createTestProbe(ReplyDeviceList.class);
+    managerActor.tell(new RequestDeviceList(1L, "group0", deviceListProbe.getRef()));
+    assertEquals(Set.of("device", "device2"), deviceListProbe.receiveMessage().ids());
+  }
+
+  @Test
+  public void testRecordBatchAndCollectTemperaturesAcrossPartitions() {
+    TestProbe<DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceRegistered.class);
+    ActorRef<DeviceManager.Command> managerActor = testKit.spawn(PartitionedDeviceManager.create(settings));
+
+    for (int i = 0; i < 4; i++) {
+      managerActor.tell(new RequestTrackDevice("group" + i, "device", registeredProbe.getRef()));
+      registeredProbe.receiveMessage();
+    }
+
+    TestProbe<TemperatureBatchRecorded> batchProbe = testKit.createTestProbe(TemperatureBatchRecorded.class);
+    managerActor.tell(new RecordTemperatureBatch(2L, List.of(
+        new TemperatureSample("group0", "device", 0.5),
+        new TemperatureSample("group1", "device", 1.5),
+        new TemperatureSample("group2", "device", 2.5),
+        new TemperatureSample("unknown", "device", 9.0)
+    ), batchProbe.getRef()));
+    TemperatureBatchRecorded recorded = batchProbe.receiveMessage();
+    assertEquals(3, recorded.accepted());
+    assertEquals(1, recorded.rejected());
+
+    TestProbe<RespondFleetTemperatures> fleetProbe = testKit.createTestProbe(RespondFleetTemperatures.class);
+    managerActor.tell(new RequestFleetTemperatures(3L, fleetProbe.getRef()));
+    RespondFleetTemperatures response = fleetProbe.receiveMessage();
+    assertEquals(3L, response.requestId());
+    assertEquals(
+        Map.of(
+            "group0", Map.of("device", new Temperature(0.5)),
+            "group1", Map.of("device", new Temperature(1.5)),
+            "group2", Map.of("device", new Temperature(2.5)),
+            "group3", Map.of("device", TemperatureNotAvailable.INSTANCE)),
+        response.temperatures());
+  }
+}
@@ -0,0 +1,57 @@
+package com.example.metrics;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.testkit.JUnitRouteTest;
+import akka.http.javadsl.testkit.TestRoute;
+import org.junit.*;
+
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRoutesTest extends JUnitRouteTest {
+
+  @ClassRule
+  public static TestKitJunitResource testkit = new TestKitJunitResource();
+
+  private TestRoute appRoute;
+
+  @Before
+  public void before() {
+    appRoute = testRoute(new MetricsRoutes().metricsRoutes());
+  }
+
+  @Test
+  public void testExposeCountsOfInstrumentedActors() {
+    TestProbe<String> probe = testkit.createTestProbe(String.class);
+    ActorRef<String> echo = testkit.spawn(
+        ActorMetrics.instrument("metrics-test", Behaviors.receiveMessage((String message) -> {
+          probe.getRef().tell(message);
+          return Behaviors.same();
+        })),
+        "echo",
+        ActorMetrics.mailbox("chat-room"));
+    for (int i = 0; i < 3; i++) {
+      echo.tell("message-" + i);
+    }
+    probe.receiveSeveralMessages(3);
+    // the handler time is recorded after the reply went out
+    probe.awaitAssert(() -> {
+      assertTrue(ActorMetrics.scrape().contains("akka_actor_messages_total{actor=\"metrics-test\"} 3\n"));
+      return null;
+    });
+
+    String metrics = appRoute.run(HttpRequest.GET("/metrics"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertContentType("text/plain; version=0.0.4; charset=UTF-8")
+        .entityString();
+    assertTrue(metrics, metrics.contains("# TYPE akka_actor_messages_total counter\n"));
+    assertTrue(metrics, metrics.contains("akka_actor_messages_total{actor=\"metrics-test\"} 3\n"));
+    assertTrue(metrics, metrics.contains("akka_actor_handler_seconds_bucket{actor=\"metrics-test\",le=\"+Inf\"} 3\n"));
+    assertTrue(metrics, metrics.contains("akka_actor_handler_seconds_count{actor=\"metrics-test\"} 3\n"));
+    assertTrue(metrics, metrics.contains("akka_actor_mailbox_size{actor=\"chat-room\"} "));
+  }
+}
@@ -0,0 +1,49 @@
+package com.example.trace;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventTraceTest {
+
+  private static List<EventTrace.Event> eventsOf(String thread) {
+    return EventTrace.events().stream()
+        .filter(event -> event.thread().equals(thread))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testKeepLatestEventsOfEveryThread() throws Exception {
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < EventTrace.EVENTS_PER_THREAD + 100; i++) {
+        EventTrace.record(TraceEvent.DEVICE_TEMPERATURE_RECORDED, i, Double.doubleToRawLongBits(i / 2.0));
+      }
+    }, "event-trace-test-writer");
+    writer.start();
+    writer.join();
+
+    List<EventTrace.Event> events = eventsOf("event-trace-test-writer");
+    assertEquals(EventTrace.EVENTS_PER_THREAD, events.size());
+    assertEquals(100L, events.get(0).a());
+    assertEquals(EventTrace.EVENTS_PER_THREAD + 99L, events.get(events.size() - 1).a());
+
+    // the writer has died, so its buffer was dropped after that dump
+    assertTrue(eventsOf("event-trace-test-writer").isEmpty());
+  }
+
+  @Test
+  public void testDumpEventsAsText() throws Exception {
+    Thread writer = new Thread(
+        () -> EventTrace.record(TraceEvent.DEVICE_TEMPERATURE_RECORDED, 42L, Double.doubleToRawLongBits(21.5)),
+        "event-trace-test-dump");
+    writer.start();
+    writer.join();
+
+    String dump = EventTrace.dump();
+    assertTrue(dump, dump.contains(" [event-trace-test-dump] DEVICE_TEMPERATURE_RECORDED requestId=42 value=21.5\n"));
+  }
+}